@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.Base64DecodeHandler;
+
+/**
+ * Base64 decoding through Base64DecodeHandler. Throughput is measured in
+ * encoded bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    @Param({ "1048576" })
+    int size;
+
+    // A multiple of 4, the handler is sent whole quads.
+    @Param({ "1460", "65536" })
+    int chunkSize;
+
+    List<Buffer> chunks;
+    int length;
+
+    @Setup
+    public void setup() {
+        byte[] encoded = Base64.getEncoder().encode(Bodies.random(size));
+        chunks = ChunkedReadStream.split(encoded, chunkSize);
+        length = encoded.length;
+    }
+
+    @Benchmark
+    public void decode(Bytes bytes, final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        Base64DecodeHandler decoder = new Base64DecodeHandler(input);
+        decoder.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer buf) {
+                bh.consume(buf);
+            }
+        });
+        input.send(chunks);
+        bytes.bytes += length;
+    }
+}
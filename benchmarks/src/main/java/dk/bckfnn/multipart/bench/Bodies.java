@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Generates multipart bodies with random content.
+ */
+public class Bodies {
+    private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    /**
+     * Return a boundary of the given length in the style of a browser
+     * generated boundary.
+     */
+    public static String boundary(int length) {
+        Random rnd = new Random(length);
+        StringBuilder sb = new StringBuilder("----WebKitFormBoundary");
+        while (sb.length() < length) {
+            sb.append(CHARS.charAt(rnd.nextInt(CHARS.length())));
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    public static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Return a multipart/form-data body with the given number of file parts
+     * of fileSize random bytes each.
+     */
+    public static byte[] multipart(String boundary, int parts, int fileSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] content = random(fileSize);
+        for (int i = 0; i < parts; i++) {
+            write(out, "--" + boundary + "\r\n");
+            write(out, "Content-Disposition: form-data; name=\"file" + i + "\"; filename=\"file" + i + ".bin\"\r\n");
+            write(out, "Content-Type: application/octet-stream\r\n");
+            write(out, "\r\n");
+            out.write(content, 0, content.length);
+            write(out, "\r\n");
+        }
+        write(out, "--" + boundary + "--\r\n");
+        return out.toByteArray();
+    }
+
+    /**
+     * Return a multipart/form-data body with the given number of small text
+     * fields, each with a content type and a custom header.
+     */
+    public static byte[] form(String boundary, int fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < fields; i++) {
+            write(out, "--" + boundary + "\r\n");
+            write(out, "Content-Disposition: form-data; name=\"field" + i + "\"\r\n");
+            write(out, "Content-Type: text/plain; charset=UTF-8\r\n");
+            write(out, "X-Field-Id: " + i + "\r\n");
+            write(out, "\r\n");
+            write(out, "value" + i + "\r\n");
+        }
+        write(out, "--" + boundary + "--\r\n");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes();
+        out.write(b, 0, b.length);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+/**
+ * A ReadStream that sends a prepared list of buffers, like the network reads
+ * of a request.
+ */
+public class ChunkedReadStream implements ReadStream {
+    private Handler<Buffer> dataHandler;
+    private Handler<Void> endHandler;
+
+    @Override
+    public void dataHandler(Handler<Buffer> dataHandler) {
+        this.dataHandler = dataHandler;
+    }
+
+    @Override
+    public void endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+    }
+
+    @Override
+    public void exceptionHandler(Handler<Exception> exceptionHandler) {
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public void resume() {
+    }
+
+    public void send(List<Buffer> chunks) {
+        for (Buffer chunk : chunks) {
+            dataHandler.handle(chunk);
+        }
+        endHandler.handle(null);
+    }
+
+    /**
+     * Split data into buffers of chunkSize bytes.
+     */
+    public static List<Buffer> split(byte[] data, int chunkSize) {
+        List<Buffer> chunks = new ArrayList<>();
+        for (int i = 0; i < data.length; i += chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, data.length - i)];
+            System.arraycopy(data, i, chunk, 0, chunk.length);
+            chunks.add(new Buffer(chunk));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.BaseReadStream;
+import dk.bckfnn.multipart.DigestReadStream;
+
+/**
+ * Digests computed by DigestReadStream, compared with a stream that copies
+ * each chunk with getBytes() like the old example Md5Handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+    @Param({ "1048576" })
+    int size;
+
+    @Param({ "1460", "65536" })
+    int chunkSize;
+
+    List<Buffer> chunks;
+
+    @Setup
+    public void setup() {
+        chunks = ChunkedReadStream.split(Bodies.random(size), chunkSize);
+    }
+
+    @Benchmark
+    public void copyMd5(Bytes bytes, Blackhole bh) throws Exception {
+        ChunkedReadStream input = new ChunkedReadStream();
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        new BaseReadStream(input) {
+            @Override
+            protected void handleData(Buffer buf) {
+                md5.update(buf.getBytes());
+            }
+        };
+        input.send(chunks);
+        bh.consume(md5.digest());
+        bytes.bytes += size;
+    }
+
+    @Benchmark
+    public void streamMd5(Bytes bytes, Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        DigestReadStream digest = new DigestReadStream(input, "MD5");
+        input.send(chunks);
+        bh.consume(digest.getDigest("MD5"));
+        bytes.bytes += size;
+    }
+
+    @Benchmark
+    public void streamMd5Sha256Crc32(Bytes bytes, Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        DigestReadStream digest = new DigestReadStream(input, "MD5", "SHA-256", "CRC32");
+        input.send(chunks);
+        bh.consume(digest.getDigests());
+        bytes.bytes += size;
+    }
+}
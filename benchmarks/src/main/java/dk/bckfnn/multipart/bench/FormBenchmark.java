@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+/**
+ * Reading a form of small text fields into a map, with a dataHandler and
+ * endHandler per field or with MultipartOptions.collectFields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormBenchmark {
+    @Param({ "1000" })
+    int fields;
+
+    byte[] boundary;
+    List<Buffer> chunks;
+
+    @Setup
+    public void setup() {
+        String b = Bodies.boundary(40);
+        boundary = b.getBytes();
+        chunks = ChunkedReadStream.split(Bodies.form(b, fields), 16384);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> handlers() {
+        final Map<String, List<String>> form = new HashMap<>();
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                final Buffer value = new Buffer();
+                field.dataHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(Buffer buf) {
+                        value.appendBuffer(buf);
+                    }
+                });
+                field.endHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void arg) {
+                        List<String> values = form.get(field.getName());
+                        if (values == null) {
+                            values = new ArrayList<>();
+                            form.put(field.getName(), values);
+                        }
+                        values.add(value.toString("UTF-8"));
+                    }
+                });
+            }
+        });
+        input.send(chunks);
+        return form;
+    }
+
+    @Benchmark
+    public Map<String, List<String>> collect() {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input, new MultipartOptions().collectFields(true));
+        input.send(chunks);
+        return handler.getFormFields();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+
+/**
+ * Parsing of a form with many small fields, where the headers dominate.
+ * 
+ * The getters measures the FieldInfo getters only, headers also reads all
+ * headers through getHeader(). Run with -prof gc and divide
+ * gc.alloc.rate.norm by fields to get the allocation per part.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    @Param({ "1000" })
+    int fields;
+
+    byte[] boundary;
+    List<Buffer> chunks;
+
+    @Setup
+    public void setup() {
+        String b = Bodies.boundary(40);
+        boundary = b.getBytes();
+        chunks = ChunkedReadStream.split(Bodies.form(b, fields), 16384);
+    }
+
+    @Benchmark
+    public void getters(final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                bh.consume(field.getName());
+                bh.consume(field.getContentType());
+            }
+        });
+        input.send(chunks);
+    }
+
+    @Benchmark
+    public void headers(final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                bh.consume(field.getHeader("content-disposition").getParam("name"));
+                bh.consume(field.getHeader("content-type").getParam("charset"));
+                bh.consume(field.getHeader("x-field-id").getValue());
+            }
+        });
+        input.send(chunks);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.WriteStream;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+import dk.bckfnn.multipart.ThreadLocalBufferPool;
+
+/**
+ * End to end parsing of a multipart body through MultipartHandler, relaying
+ * it unchanged in passthrough mode, and skipping the bodies of all parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartHandlerBenchmark {
+    @Param({ "1", "100" })
+    int parts;
+
+    @Param({ "1024", "1048576" })
+    int fileSize;
+
+    @Param({ "16", "70" })
+    int boundaryLength;
+
+    @Param({ "1460", "16384", "65536" })
+    int chunkSize;
+
+    @Param({ "false", "true" })
+    boolean pooled;
+
+    byte[] boundary;
+    List<Buffer> chunks;
+    int length;
+    MultipartOptions options;
+
+    @Setup
+    public void setup() {
+        String b = Bodies.boundary(boundaryLength);
+        byte[] body = Bodies.multipart(b, parts, fileSize);
+        boundary = b.getBytes();
+        chunks = ChunkedReadStream.split(body, chunkSize);
+        length = body.length;
+        options = new MultipartOptions();
+        if (pooled) {
+            options.bufferPool(new ThreadLocalBufferPool());
+        }
+    }
+
+    @Benchmark
+    public void parse(Bytes bytes, final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input, options);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    @Override
+                    public void handle(Buffer buf) {
+                        bh.consume(buf);
+                        field.release(buf);
+                    }
+                });
+            }
+        });
+        input.send(chunks);
+        bytes.bytes += length;
+    }
+
+    @Benchmark
+    public void passthrough(Bytes bytes, final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input, options);
+        handler.passthrough(new WriteStream() {
+            @Override
+            public void writeBuffer(Buffer buf) {
+                bh.consume(buf);
+            }
+
+            @Override
+            public void setWriteQueueMaxSize(int maxSize) {
+            }
+
+            @Override
+            public boolean writeQueueFull() {
+                return false;
+            }
+
+            @Override
+            public void drainHandler(Handler<Void> handler) {
+            }
+
+            @Override
+            public void exceptionHandler(Handler<Exception> handler) {
+            }
+        });
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                bh.consume(field.getName());
+            }
+        });
+        input.send(chunks);
+        bytes.bytes += length;
+    }
+
+    @Benchmark
+    public void skip(Bytes bytes, final Blackhole bh) {
+        ChunkedReadStream input = new ChunkedReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary, input, options);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                bh.consume(field.getName());
+                field.skip();
+            }
+        });
+        input.send(chunks);
+        bytes.bytes += length;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler.Delimiter;
+import dk.bckfnn.multipart.MultipartHandler.RecordParser;
+
+/**
+ * Boundary search in RecordParser.parseDelimited over a body without other
+ * parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordParserBenchmark {
+    @Param({ "4", "16", "70" })
+    int boundaryLength;
+
+    @Param({ "1460", "65536" })
+    int chunkSize;
+
+    @Param({ "65536" })
+    int max;
+
+    Delimiter delimiter;
+    List<Buffer> chunks;
+    int length;
+
+    @Setup
+    public void setup() {
+        byte[] delim = ("\r\n--" + Bodies.boundary(boundaryLength)).getBytes();
+        byte[] content = Bodies.random(4 * 1024 * 1024);
+        byte[] body = new byte[content.length + delim.length];
+        System.arraycopy(content, 0, body, 0, content.length);
+        System.arraycopy(delim, 0, body, content.length, delim.length);
+
+        delimiter = new Delimiter(delim);
+        chunks = ChunkedReadStream.split(body, chunkSize);
+        length = body.length;
+    }
+
+    @Benchmark
+    public void parseDelimited(Bytes bytes, Blackhole bh) {
+        RecordParser parser = new RecordParser();
+        for (Buffer chunk : chunks) {
+            parser.add(chunk);
+            Buffer b;
+            while ((b = parser.parseDelimited(delimiter, max)) != null) {
+                bh.consume(b);
+            }
+        }
+        bytes.bytes += length;
+    }
+}
@@ -17,29 +17,45 @@ package dk.bckfnn.multipart;
 
 import java.util.Arrays;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.streams.ReadStream;
 
 /**
  * An ReadStream that will Base64 decode the input and pass the decoded binary
  * to the ReadStream pass in the constructor.
+ * 
+ * Whitespace is allowed anywhere in the input. At most 3 sextets are carried
+ * over between input buffers, and each input buffer is decoded directly into
+ * the backing array of a single output buffer. Complete quads are decoded 4
+ * bytes at a time.
  */
 public class Base64DecodeHandler extends BaseReadStream {
     final static char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
-    final static int[] toint = new int[255];
+
+    final static int WS = -1;
+    final static int PAD = -2;
+    final static int ILLEGAL = -3;
+
+    // The value of each byte, or one of WS, PAD or ILLEGAL.
+    final static int[] toint = new int[256];
 
     static {
-        Arrays.fill(toint, -2);
+        Arrays.fill(toint, ILLEGAL);
         for (int i = 0; i < alphabet.length; i++) {
             toint[alphabet[i]] = i;
         }
-        toint['='] = -1;
-        toint['\r'] = -1;
-        toint['\n'] = -1;
+        toint['='] = PAD;
+        toint['\r'] = WS;
+        toint['\n'] = WS;
+        toint[' '] = WS;
+        toint['\t'] = WS;
     }
 
-    private int start;
-    private Buffer buffer;
+    private int bits; // The sextets of the current quad
+    private int count; // Number of sextets in bits
+    private boolean done; // Padding has been seen, only whitespace may follow
+    private int missingPad; // Number of '=' still allowed after done
 
     /**
      * Constructor. Pass in the output ReadStream by calling input(ReadStream).
@@ -59,78 +75,104 @@ public class Base64DecodeHandler extends BaseReadStream {
 
     @Override
     protected void handleData(Buffer buf) {
-        if (buffer == null) {
-            buffer = buf;
+        ChannelBuffer in = buf.getChannelBuffer();
+        int len = in.readableBytes();
+        byte[] src;
+        int i;
+        int end;
+        if (in.hasArray()) {
+            src = in.array();
+            i = in.arrayOffset() + in.readerIndex();
         } else {
-            buffer.appendBuffer(buf);
+            src = new byte[len];
+            in.getBytes(in.readerIndex(), src);
+            i = 0;
         }
-
-        int len = buffer.length();
-        Buffer out = new Buffer(len * 3 / 4 + 1);
-        while (len - start >= 4) {
-            int v0 = buffer.getByte(start++);
-            int n0 = toint[v0];
-            if (n0 == -1) {
-                continue;
-            }
-            if (n0 == -2) {
-                handleException(new RuntimeException("Illegal base64 char " + (char) v0));
-                return;
+        end = i + len;
+
+        Buffer out = bufferPool.acquire((count + len) / 4 * 3 + 3);
+        ChannelBuffer outBuf = out.getChannelBuffer();
+        byte[] dst = outBuf.array();
+        int start = outBuf.arrayOffset();
+        int o = start;
+
+        while (i < end) {
+            if (count == 0 && !done) {
+                // Fast path, decode complete quads.
+                while (i + 4 <= end) {
+                    int n0 = toint[src[i] & 0xff];
+                    int n1 = toint[src[i + 1] & 0xff];
+                    int n2 = toint[src[i + 2] & 0xff];
+                    int n3 = toint[src[i + 3] & 0xff];
+                    if ((n0 | n1 | n2 | n3) < 0) {
+                        break;
+                    }
+                    int v = n0 << 18 | n1 << 12 | n2 << 6 | n3;
+                    dst[o++] = (byte) (v >> 16);
+                    dst[o++] = (byte) (v >> 8);
+                    dst[o++] = (byte) v;
+                    i += 4;
+                }
+                if (i == end) {
+                    break;
+                }
             }
 
-            int v1 = buffer.getByte(start++);
-            int n1 = toint[v1];
-            if (n1 == -2) {
-                handleException(new RuntimeException("Illegal base64 char " + (char) v1));
-                return;
+            int ch = src[i++] & 0xff;
+            int n = toint[ch];
+            if (n == WS) {
+                continue;
             }
-
-            int v2 = buffer.getByte(start++);
-            int n2 = toint[v2];
-            if (n2 == -2) {
-                handleException(new RuntimeException("Illegal base64 char " + (char) v2));
+            if (n >= 0 && !done) {
+                bits = bits << 6 | n;
+                if (++count == 4) {
+                    dst[o++] = (byte) (bits >> 16);
+                    dst[o++] = (byte) (bits >> 8);
+                    dst[o++] = (byte) bits;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (n == PAD && count == 3) {
+                dst[o++] = (byte) (bits >> 10);
+                dst[o++] = (byte) (bits >> 2);
+                bits = 0;
+                count = 0;
+                done = true;
+            } else if (n == PAD && count == 2) {
+                dst[o++] = (byte) (bits >> 4);
+                bits = 0;
+                count = 0;
+                done = true;
+                missingPad = 1;
+            } else if (n == PAD && done && missingPad > 0) {
+                missingPad--;
+            } else if (done) {
+                emit(out, o - start);
+                handleException(new RuntimeException("Illegal trailing base64 data"));
                 return;
-            }
-
-            int v3 = buffer.getByte(start++);
-            int n3 = toint[v3];
-            if (n3 == -2) {
-                handleException(new RuntimeException("Illegal base64 char " + (char) v3));
+            } else {
+                bufferPool.release(out);
+                handleException(new RuntimeException("Illegal base64 char " + (char) ch));
                 return;
             }
-
-            out.appendByte((byte) (n0 << 2 | n1 >> 4));
-            if (v2 == '=' && v3 == '=') {
-                break;
-            }
-            out.appendByte((byte) (n1 << 4 | n2 >> 2));
-            if (v3 == '=') {
-                break;
-            }
-            out.appendByte((byte) (n2 << 6 | n3));
         }
-        if (start < len) {
-            buffer = buffer.getBuffer(start, len);
+        emit(out, o - start);
+    }
+
+    private void emit(Buffer out, int length) {
+        if (length > 0) {
+            out.getChannelBuffer().writerIndex(length);
+            super.handleData(out);
         } else {
-            buffer = null;
+            bufferPool.release(out);
         }
-        start = 0;
-        super.handleData(out);
     }
 
     @Override
     protected void handleEnd() {
-        if (buffer != null) {
-            int len = buffer.length();
-
-            while (start < len) {
-                int v0 = buffer.getByte(start++);
-                int n0 = toint[v0];
-                if (n0 != -1) {
-                    handleException(new RuntimeException("Illegal trailing base64 data"));
-                    break;
-                }
-            }
+        if (count != 0) {
+            handleException(new RuntimeException("Illegal trailing base64 data"));
+            return;
         }
         super.handleEnd();
     }
@@ -40,6 +40,12 @@ public class BaseReadStream implements ReadStream {
     // An exception have occurred. Ignore any further events from the input.
     protected boolean exception;
 
+    // Source of the Buffers sent to the dataHandler.
+    protected BufferPool bufferPool = UnpooledBufferPool.INSTANCE;
+
+    // Number of bytes sent to the dataHandler.
+    protected long bytesOut;
+
     public BaseReadStream() {
     }
 
@@ -89,6 +95,29 @@ public class BaseReadStream implements ReadStream {
         this.exceptionHandler = exceptionHandler;
     }
 
+    /**
+     * Set the pool the output Buffers are taken from.
+     */
+    public void bufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Take a Buffer with room for at least size bytes from the pool. Give
+     * it back with release() when it is no longer used.
+     */
+    public Buffer acquire(int size) {
+        return bufferPool.acquire(size);
+    }
+
+    /**
+     * Give a Buffer received from the dataHandler back to the pool. The
+     * Buffer must not be used after this.
+     */
+    public void release(Buffer buf) {
+        bufferPool.release(buf);
+    }
+
     @Override
     public void pause() {
         input.pause();
@@ -100,6 +129,7 @@ public class BaseReadStream implements ReadStream {
     }
 
     protected void handleData(Buffer buf) {
+        bytesOut += buf.length();
         if (dataHandler != null) {
             dataHandler.handle(buf);
         }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * A source of Buffers for the data sent by the parser and the decoders.
+ * 
+ * A consumer that is done with a Buffer it received from a dataHandler can
+ * hand it back with FieldInfo.release(buf) so the memory is reused for later
+ * data. A released Buffer must not be used again. Buffers that are never
+ * released are simply garbage collected. A Buffer must only be released
+ * once.
+ */
+public interface BufferPool {
+    /**
+     * Return an empty Buffer with room for at least size bytes.
+     */
+    public Buffer acquire(int size);
+
+    /**
+     * Give a Buffer back to the pool.
+     */
+    public void release(Buffer buf);
+}
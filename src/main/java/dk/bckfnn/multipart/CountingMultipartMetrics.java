@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import dk.bckfnn.multipart.MultipartHandler.State;
+
+/**
+ * A thread safe MultipartMetrics that keeps totals, for example to publish
+ * as gauges or counters in a metrics library.
+ * 
+ * Part sizes are counted in a histogram with power of 2 buckets: bucket 0
+ * counts empty parts and bucket n parts of 2^(n-1) to 2^n-1 bytes.
+ */
+public class CountingMultipartMetrics implements MultipartMetrics {
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong parts = new AtomicLong();
+    private final AtomicLong decodedParts = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLongArray partSizes = new AtomicLongArray(64);
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong pausedNanos = new AtomicLong();
+    private final AtomicLongArray stateNanos = new AtomicLongArray(State.values().length);
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    @Override
+    public void bytesReceived(int n) {
+        bytes.addAndGet(n);
+    }
+
+    @Override
+    public void partEnded(long size, long decodedSize) {
+        parts.incrementAndGet();
+        partSizes.incrementAndGet(64 - Long.numberOfLeadingZeros(size));
+        if (decodedSize >= 0) {
+            decodedParts.incrementAndGet();
+            decodedBytes.addAndGet(decodedSize);
+        }
+    }
+
+    @Override
+    public void paused() {
+        pauses.incrementAndGet();
+    }
+
+    @Override
+    public void resumed(long nanos) {
+        pausedNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void error(String cause, Exception exc) {
+        AtomicLong count = errors.get(cause);
+        if (count == null) {
+            AtomicLong c = new AtomicLong();
+            count = errors.putIfAbsent(cause, c);
+            if (count == null) {
+                count = c;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void stateTime(State state, long nanos) {
+        stateNanos.addAndGet(state.ordinal(), nanos);
+    }
+
+    @Override
+    public void requestEnded(int parts, long bytes, boolean success) {
+        requests.incrementAndGet();
+        if (!success) {
+            failedRequests.incrementAndGet();
+        }
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getParts() {
+        return parts.get();
+    }
+
+    public long getDecodedParts() {
+        return decodedParts.get();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    /**
+     * Return the number of parts in a bucket of the size histogram.
+     */
+    public long getPartSizeCount(int bucket) {
+        return partSizes.get(bucket);
+    }
+
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public long getPausedNanos() {
+        return pausedNanos.get();
+    }
+
+    public long getStateNanos(State state) {
+        return stateNanos.get(state.ordinal());
+    }
+
+    /**
+     * Return the number of errors for each cause.
+     */
+    public Map<String, AtomicLong> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+/**
+ * A ReadStream that passes the data through unchanged while computing one or
+ * more digests of it in a single pass.
+ * 
+ * The algorithms are the MessageDigest names, such as "MD5" and "SHA-256",
+ * and "CRC32" and "CRC32C" (JDK 9 or later), whose 4 byte value is returned
+ * big endian. The digests are updated from the array behind each Buffer, or
+ * from a ByteBuffer view of it, so the data is not copied. The digests are
+ * available from getDigest() when the endHandler is called.
+ */
+public class DigestReadStream extends BaseReadStream {
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+    private final Checksum[] checksums;
+    private final byte[][] results;
+
+    /**
+     * Constructor. Pass in the output ReadStream by calling input(ReadStream).
+     */
+    public DigestReadStream(String... algorithms) {
+        this.algorithms = algorithms.clone();
+        this.digests = new MessageDigest[algorithms.length];
+        this.checksums = new Checksum[algorithms.length];
+        this.results = new byte[algorithms.length][];
+        for (int i = 0; i < algorithms.length; i++) {
+            if (algorithms[i].equalsIgnoreCase("CRC32")) {
+                checksums[i] = new CRC32();
+            } else if (algorithms[i].equalsIgnoreCase("CRC32C")) {
+                checksums[i] = crc32c();
+            } else {
+                try {
+                    digests[i] = MessageDigest.getInstance(algorithms[i]);
+                } catch (NoSuchAlgorithmException exc) {
+                    throw new IllegalArgumentException("Unknown digest algorithm " + algorithms[i], exc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor. Read the data from the input ReadStream.
+     */
+    public DigestReadStream(ReadStream input, String... algorithms) {
+        this(algorithms);
+        input(input);
+    }
+
+    /**
+     * Return the digest computed with the algorithm, or null if the stream
+     * has not ended or the algorithm is not one of the constructor
+     * arguments.
+     */
+    public byte[] getDigest(String algorithm) {
+        for (int i = 0; i < algorithms.length; i++) {
+            if (algorithms[i].equalsIgnoreCase(algorithm)) {
+                return results[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the digests by algorithm, or an empty map if the stream has not
+     * ended.
+     */
+    public Map<String, byte[]> getDigests() {
+        Map<String, byte[]> map = new LinkedHashMap<>();
+        for (int i = 0; i < algorithms.length; i++) {
+            if (results[i] != null) {
+                map.put(algorithms[i], results[i]);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    protected void handleData(Buffer buf) {
+        update(buf.getChannelBuffer());
+        super.handleData(buf);
+    }
+
+    @Override
+    protected void handleEnd() {
+        finish();
+        super.handleEnd();
+    }
+
+    /**
+     * Add the readable bytes of the ChannelBuffer to the digests.
+     */
+    void update(ChannelBuffer cb) {
+        int len = cb.readableBytes();
+        if (cb.hasArray()) {
+            byte[] array = cb.array();
+            int off = cb.arrayOffset() + cb.readerIndex();
+            for (int i = 0; i < algorithms.length; i++) {
+                if (digests[i] != null) {
+                    digests[i].update(array, off, len);
+                } else {
+                    checksums[i].update(array, off, len);
+                }
+            }
+            return;
+        }
+        byte[] copy = null;
+        for (int i = 0; i < algorithms.length; i++) {
+            if (digests[i] != null) {
+                digests[i].update(cb.toByteBuffer());
+            } else {
+                // Checksum can't read a ByteBuffer before JDK 9.
+                if (copy == null) {
+                    copy = new byte[len];
+                    cb.getBytes(cb.readerIndex(), copy);
+                }
+                checksums[i].update(copy, 0, len);
+            }
+        }
+    }
+
+    /**
+     * Complete the digests and reset them for the next use.
+     */
+    void finish() {
+        for (int i = 0; i < algorithms.length; i++) {
+            if (digests[i] != null) {
+                results[i] = digests[i].digest();
+            } else {
+                int v = (int) checksums[i].getValue();
+                results[i] = new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+                checksums[i].reset();
+            }
+        }
+    }
+
+    /**
+     * Clear the digests and the results, so the stream can be used for
+     * another input.
+     */
+    void reset() {
+        for (int i = 0; i < algorithms.length; i++) {
+            if (digests[i] != null) {
+                digests[i].reset();
+            } else {
+                checksums[i].reset();
+            }
+            results[i] = null;
+        }
+        exception = false;
+        bytesOut = 0;
+    }
+
+    private static Checksum crc32c() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException exc) {
+            throw new IllegalArgumentException("Unknown digest algorithm CRC32C", exc);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+
+/**
+ * Stores the body of a part in a file.
+ * 
+ * The data is collected into batches of batchSize bytes and each batch is
+ * written with a single write. Only one write is outstanding at a time, the
+ * part (and with it the MultipartHandler) is paused while the file is opened
+ * and while a full batch waits for the previous write to finish.
+ * 
+ * When the part ends and all data is written, the file is closed and the
+ * resultHandler is called with the sink, from which the path and the number
+ * of bytes written can be read. On failure the file is deleted.
+ * 
+ * The file is written through an AsynchronousFileChannel, because vert.x
+ * AsyncFile writes at an int position and can't store a part of 2Gb or more.
+ * The file is created and deleted with vertx.fileSystem(), the channel only
+ * opens the existing file and is closed when no write is outstanding. The
+ * completion of a write is handled on the event loop that created the sink.
+ */
+public class FileUploadSink {
+    public final static int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+    private final Vertx vertx;
+    private final Executor eventLoop;
+    private final FieldInfo field;
+    private final String path;
+    private final int batchSize;
+
+    private AsyncResultHandler<FileUploadSink> resultHandler;
+
+    private AsynchronousFileChannel file;
+    private Buffer pending;
+    private long bytesWritten;
+    private boolean writing;
+    private boolean paused;
+    private boolean ended;
+    private boolean failed;
+
+    /**
+     * Constructor. Store the part in a new file in the temp directory.
+     */
+    public FileUploadSink(Vertx vertx, FieldInfo field) {
+        this(vertx, field, tempPath(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor. Store the part in a new file.
+     */
+    public FileUploadSink(Vertx vertx, FieldInfo field, String path) {
+        this(vertx, field, path, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor. Must be called on the event loop.
+     * 
+     * @param vertx the vert.x instance.
+     * @param field the part to store.
+     * @param path the file to create.
+     * @param batchSize the size of the writes.
+     */
+    public FileUploadSink(Vertx vertx, FieldInfo field, String path, int batchSize) {
+        this(vertx, field, path, batchSize, null);
+    }
+
+    /**
+     * Constructor. The data already received from the part is written first.
+     */
+    FileUploadSink(Vertx vertx, FieldInfo field, final String path, int batchSize, Buffer received) {
+        this.vertx = vertx;
+        this.eventLoop = WorkerReadStream.eventLoop(vertx);
+        this.field = field;
+        this.path = path;
+        this.batchSize = batchSize;
+        this.pending = received;
+
+        field.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer buf) {
+                handleData(buf);
+            }
+        });
+        field.endHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void arg) {
+                handleEnd();
+            }
+        });
+        field.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                fail(exc);
+            }
+        });
+
+        pause();
+        vertx.fileSystem().createFile(path, new AsyncResultHandler<Void>() {
+            @Override
+            public void handle(AsyncResult<Void> result) {
+                if (result.failed()) {
+                    fail(result.exception);
+                    return;
+                }
+                if (failed) {
+                    closeAndDelete();
+                    return;
+                }
+                try {
+                    file = AsynchronousFileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+                } catch (IOException exc) {
+                    fail(exc);
+                    closeAndDelete();
+                    return;
+                }
+                resume();
+                writeIfReady();
+            }
+        });
+    }
+
+    /**
+     * Set the handler that is called when the file is closed or the upload
+     * has failed.
+     */
+    public FileUploadSink resultHandler(AsyncResultHandler<FileUploadSink> resultHandler) {
+        this.resultHandler = resultHandler;
+        return this;
+    }
+
+    /**
+     * Return the path of the file.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Return the number of bytes written to the file so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void handleData(Buffer buf) {
+        if (failed) {
+            return;
+        }
+        if (pending == null) {
+            pending = new Buffer(batchSize);
+        }
+        pending.appendBuffer(buf);
+        field.release(buf);
+        if (pending.length() >= batchSize) {
+            writeIfReady();
+        }
+    }
+
+    private void handleEnd() {
+        ended = true;
+        writeIfReady();
+    }
+
+    /**
+     * Write the pending batch if it is full, or if the part has ended. Pause
+     * the part if a full batch must wait.
+     */
+    private void writeIfReady() {
+        boolean full = pending != null && pending.length() >= batchSize;
+        if (file == null || writing || failed) {
+            if (full) {
+                pause();
+            }
+            return;
+        }
+        if (full || (ended && pending != null)) {
+            Buffer batch = pending;
+            pending = null;
+            write(batch);
+        } else if (ended) {
+            close();
+        } else {
+            resume();
+        }
+    }
+
+    private void write(Buffer batch) {
+        writing = true;
+        write(batch.getChannelBuffer().toByteBuffer());
+    }
+
+    /**
+     * Write the data at the end of the file. A write may be partial, the rest
+     * is written when it completes.
+     */
+    private void write(final ByteBuffer data) {
+        file.write(data, bytesWritten, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(final Integer n, Void attachment) {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        bytesWritten += n;
+                        if (failed) {
+                            writing = false;
+                            closeAndDelete();
+                        } else if (data.hasRemaining()) {
+                            write(data);
+                        } else {
+                            writing = false;
+                            writeIfReady();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable exc, Void attachment) {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writing = false;
+                        if (failed) {
+                            closeAndDelete();
+                        } else {
+                            fail(exc instanceof Exception ? (Exception) exc : new RuntimeException(exc));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Close the file and report the result. The part may have been paused
+     * by a full batch that arrived together with its end, so resume it for
+     * the next part.
+     */
+    private void close() {
+        try {
+            file.close();
+        } catch (IOException exc) {
+            fail(exc);
+            return;
+        }
+        if (resultHandler != null) {
+            resultHandler.handle(new AsyncResult<FileUploadSink>(this));
+        }
+        resume();
+    }
+
+    private void fail(Exception exc) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        pending = null;
+        resume();
+        if (file != null && !writing) {
+            closeAndDelete();
+        }
+        if (resultHandler != null) {
+            resultHandler.handle(new AsyncResult<FileUploadSink>(exc));
+        }
+    }
+
+    /**
+     * Close the file, if it is open, and delete it. Must not be called while
+     * a write is outstanding.
+     */
+    private void closeAndDelete() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException exc) {
+                // The file is deleted anyway.
+            }
+        }
+        vertx.fileSystem().delete(path, new AsyncResultHandler<Void>() {
+            @Override
+            public void handle(AsyncResult<Void> result) {
+            }
+        });
+    }
+
+    private void pause() {
+        if (!paused) {
+            paused = true;
+            field.pause();
+        }
+    }
+
+    private void resume() {
+        if (paused) {
+            paused = false;
+            field.resume();
+        }
+    }
+
+    static String tempPath() {
+        return new File(System.getProperty("java.io.tmpdir"), "upload-" + UUID.randomUUID() + ".tmp").getPath();
+    }
+}
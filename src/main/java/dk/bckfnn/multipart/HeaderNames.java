@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+/**
+ * Returns canonical lower case String instances for header and parameter
+ * names, so the same name is not allocated again for every part.
+ * 
+ * The well known names are found in a static table indexed by a perfect hash
+ * of the length and the first, middle and last byte. Other names are kept in
+ * a small direct mapped cache, one per MultipartHandler. The cache is
+ * bounded: a name that hashes to a used slot replaces the name in the slot.
+ */
+public class HeaderNames {
+    final static String[] KNOWN = {
+            "content-disposition",
+            "content-type",
+            "content-transfer-encoding",
+            "content-encoding",
+            "content-length",
+            "content-id",
+            "content-description",
+            "content-language",
+            "content-location",
+            "content-md5",
+            "name",
+            "filename",
+            "filename*",
+            "boundary",
+            "charset",
+            "size",
+            "creation-date",
+            "modification-date",
+            "read-date",
+            "type",
+            "start",
+    };
+    final static int TABLE_SIZE = 32;
+    public final static int DEFAULT_CACHE_SIZE = 64;
+
+    private final static String[] table = new String[TABLE_SIZE];
+    private final static byte[][] tableBytes = new byte[TABLE_SIZE][];
+
+    static {
+        for (String name : KNOWN) {
+            byte[] b = name.getBytes();
+            int h = hash(b, 0, b.length);
+            if (table[h] != null) {
+                throw new IllegalStateException("Header name hash collision " + name + " " + table[h]);
+            }
+            table[h] = name;
+            tableBytes[h] = b;
+        }
+    }
+
+    private final String[] cache;
+    private final byte[][] cacheBytes;
+
+    public HeaderNames() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param cacheSize the number of names that can be cached, a power of 2.
+     */
+    public HeaderNames(int cacheSize) {
+        if (Integer.bitCount(cacheSize) != 1) {
+            throw new IllegalArgumentException("cacheSize must be a power of 2");
+        }
+        cache = new String[cacheSize];
+        cacheBytes = new byte[cacheSize][];
+    }
+
+    /**
+     * Return the canonical lower case name for the bytes.
+     */
+    public String get(byte[] b, int off, int len) {
+        String name = known(b, off, len);
+        if (name != null) {
+            return name;
+        }
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + lower(b[off + i]);
+        }
+        h = (h ^ (h >>> 16)) & (cache.length - 1);
+        if (cacheBytes[h] != null && equalsIgnoreCase(b, off, len, cacheBytes[h])) {
+            return cache[h];
+        }
+        byte[] lower = new byte[len];
+        for (int i = 0; i < len; i++) {
+            lower[i] = lower(b[off + i]);
+        }
+        name = new String(lower, MultipartHandler.UTF8);
+        cache[h] = name;
+        cacheBytes[h] = lower;
+        return name;
+    }
+
+    /**
+     * Return the canonical name if the bytes are one of the well known names,
+     * otherwise null.
+     */
+    public static String known(byte[] b, int off, int len) {
+        if (len == 0) {
+            return "";
+        }
+        int h = hash(b, off, len);
+        if (tableBytes[h] != null && equalsIgnoreCase(b, off, len, tableBytes[h])) {
+            return table[h];
+        }
+        return null;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        return (len + 6 * lower(b[off]) + 2 * lower(b[off + len - 1]) + 2 * lower(b[off + len / 2])) & (TABLE_SIZE - 1);
+    }
+
+    private static byte lower(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] b, int off, int len, byte[] lowerCase) {
+        if (len != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (lower(b[off + i]) != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+
+/**
+ * Stores the body of a part in memory, or in a temp file when the part turns
+ * out to be larger than a threshold.
+ * 
+ * The data is kept in a Buffer from the MultipartOptions.bufferPool until it
+ * would grow beyond the threshold. Then a FileUploadSink is created with the
+ * data received so far and the rest of the part is written to the file.
+ * Small parts never touch the file system, and at most threshold bytes are
+ * held in memory.
+ * 
+ * When the part ends the resultHandler is called with the sink. If
+ * isInMemory() is true the content is in getBuffer(), which the caller may
+ * give back with FieldInfo.release(), otherwise in the file at getPath(),
+ * which the caller must delete.
+ */
+public class HybridUploadSink {
+    public final static int DEFAULT_THRESHOLD = 64 * 1024;
+    final static int INITIAL_SIZE = 4096;
+
+    private final Vertx vertx;
+    private final FieldInfo field;
+    private final int threshold;
+
+    private AsyncResultHandler<HybridUploadSink> resultHandler;
+
+    private Buffer buffer;
+    private FileUploadSink file;
+
+    /**
+     * Constructor. Keep parts up to 64Kb in memory.
+     */
+    public HybridUploadSink(Vertx vertx, FieldInfo field) {
+        this(vertx, field, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param vertx the vert.x instance.
+     * @param field the part to store.
+     * @param threshold the largest part kept in memory.
+     */
+    public HybridUploadSink(Vertx vertx, FieldInfo field, int threshold) {
+        this.vertx = vertx;
+        this.field = field;
+        this.threshold = threshold;
+        this.buffer = field.acquire(Math.min(threshold, INITIAL_SIZE));
+
+        field.dataHandler(new Handler<Buffer>() {
+            @Override
+            public void handle(Buffer buf) {
+                handleData(buf);
+            }
+        });
+        field.endHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void arg) {
+                complete(new AsyncResult<HybridUploadSink>(HybridUploadSink.this));
+            }
+        });
+        field.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                complete(new AsyncResult<HybridUploadSink>(exc));
+            }
+        });
+    }
+
+    /**
+     * Set the handler that is called when the part is stored or has failed.
+     */
+    public HybridUploadSink resultHandler(AsyncResultHandler<HybridUploadSink> resultHandler) {
+        this.resultHandler = resultHandler;
+        return this;
+    }
+
+    /**
+     * Return true if the part is kept in memory.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Return the content of the part when it is kept in memory, otherwise
+     * null.
+     */
+    public Buffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Return the path of the file when the part is stored in a file,
+     * otherwise null.
+     */
+    public String getPath() {
+        return file != null ? file.getPath() : null;
+    }
+
+    /**
+     * Return the number of bytes stored so far.
+     */
+    public long getSize() {
+        return file != null ? file.getBytesWritten() : buffer.length();
+    }
+
+    private void handleData(Buffer buf) {
+        int length = buffer.length() + buf.length();
+        if (length > threshold) {
+            spill(buf);
+            return;
+        }
+        if (length > buffer.getChannelBuffer().capacity()) {
+            grow(length);
+        }
+        buffer.appendBuffer(buf);
+        field.release(buf);
+    }
+
+    /**
+     * Move the data to a larger Buffer from the pool. Growing the Buffer in
+     * place would give it a size the pool does not reuse.
+     */
+    private void grow(int length) {
+        int size = Math.max(buffer.getChannelBuffer().capacity(), INITIAL_SIZE);
+        while (size < length) {
+            size *= 2;
+        }
+        Buffer larger = field.acquire(Math.min(size, threshold));
+        larger.appendBuffer(buffer);
+        field.release(buffer);
+        buffer = larger;
+    }
+
+    /**
+     * Move to a file. The FileUploadSink takes over the part's handlers.
+     */
+    private void spill(Buffer buf) {
+        Buffer received = new Buffer(FileUploadSink.DEFAULT_BATCH_SIZE);
+        received.appendBuffer(buffer);
+        received.appendBuffer(buf);
+        field.release(buffer);
+        field.release(buf);
+        buffer = null;
+        file = new FileUploadSink(vertx, field, FileUploadSink.tempPath(), FileUploadSink.DEFAULT_BATCH_SIZE, received);
+        file.resultHandler(new AsyncResultHandler<FileUploadSink>() {
+            @Override
+            public void handle(AsyncResult<FileUploadSink> result) {
+                if (result.failed()) {
+                    complete(new AsyncResult<HybridUploadSink>(result.exception));
+                } else {
+                    complete(new AsyncResult<HybridUploadSink>(HybridUploadSink.this));
+                }
+            }
+        });
+    }
+
+    private void complete(AsyncResult<HybridUploadSink> result) {
+        if (result.failed() && buffer != null) {
+            field.release(buffer);
+            buffer = null;
+        }
+        if (resultHandler != null) {
+            resultHandler.handle(result);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+/**
+ * An ReadStream that will decompress gzip or deflate (zlib) input and pass
+ * the decompressed data to the ReadStream pass in the constructor.
+ * 
+ * The output is sent in buffers of at most 64Kb. When the stream is paused,
+ * decompression stops and the remaining input is kept until resume(). To
+ * guard against zip bombs the stream fails when the output grows larger than
+ * maxRatio times the compressed input.
+ */
+public class InflateReadStream extends BaseReadStream {
+    public final static int DEFAULT_MAX_RATIO = 100;
+    final static int OUTPUT_SIZE = 64 * 1024;
+
+    public enum Format {
+        GZIP,
+        DEFLATE,
+    }
+
+    enum State {
+        HEADER, // Reading a gzip member header
+        BODY, // Inflating
+        TRAILER, // Reading a gzip member trailer
+        DONE, // Deflate stream finished, no more data allowed
+    }
+
+    // gzip header flags
+    final static int FHCRC = 2;
+    final static int FEXTRA = 4;
+    final static int FNAME = 8;
+    final static int FCOMMENT = 16;
+
+    private final Format format;
+    private final long maxRatio;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+
+    private State state;
+    private int headerPos; // Bytes read of the fixed 10 byte header
+    private int flags; // Optional header fields not read yet
+    private int field; // The optional header field being read
+    private int fieldPos; // Bytes read of the field
+    private int extraLength;
+    private final byte[] trailer = new byte[8];
+    private int trailerPos;
+    private boolean member; // A gzip member has been read
+
+    private byte[] in; // Current input not yet processed
+    private int inPos;
+    private int inEnd;
+    private Buffer out; // Output buffer inflated into, sent when data is added
+
+    private long totalIn;
+    private long totalOut;
+
+    private boolean paused;
+    private boolean processing;
+    private boolean ended;
+
+    /**
+     * Constructor. Pass in the output ReadStream by calling input(ReadStream).
+     */
+    public InflateReadStream(Format format) {
+        this(format, DEFAULT_MAX_RATIO);
+    }
+
+    /**
+     * Constructor. Pass in the output ReadStream by calling input(ReadStream).
+     * 
+     * @param format the compression format.
+     * @param maxRatio the maximum ratio between the size of the output and
+     * the size of the input.
+     */
+    public InflateReadStream(Format format, long maxRatio) {
+        this.format = format;
+        this.maxRatio = maxRatio;
+        this.inflater = new Inflater(format == Format.GZIP);
+        this.state = format == Format.GZIP ? State.HEADER : State.BODY;
+    }
+
+    /**
+     * Constructor. Send the output the readStream.
+     */
+    public InflateReadStream(ReadStream readStream, Format format, long maxRatio) {
+        this(format, maxRatio);
+        input(readStream);
+    }
+
+    /**
+     * Return the format for a Content-Encoding value, or null if the encoding
+     * is not a compression this class can handle.
+     */
+    public static Format forEncoding(String encoding) {
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+            return Format.GZIP;
+        }
+        if (encoding.equalsIgnoreCase("deflate")) {
+            return Format.DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Return the format for a Content-Type value without parameters, or null
+     * if the type is not a compressed file format this class can handle.
+     */
+    public static Format forContentType(String contentType) {
+        if (contentType.equalsIgnoreCase("application/gzip") || contentType.equalsIgnoreCase("application/x-gzip")) {
+            return Format.GZIP;
+        }
+        return null;
+    }
+
+    @Override
+    protected void handleData(Buffer buf) {
+        ChannelBuffer cb = buf.getChannelBuffer();
+        int len = cb.readableBytes();
+        byte[] data;
+        int off;
+        if (cb.hasArray()) {
+            data = cb.array();
+            off = cb.arrayOffset() + cb.readerIndex();
+        } else {
+            data = new byte[len];
+            cb.getBytes(cb.readerIndex(), data);
+            off = 0;
+        }
+        if (inPos < inEnd) {
+            // Input arrived while paused, keep it after the remaining input.
+            byte[] b = new byte[inEnd - inPos + len];
+            System.arraycopy(in, inPos, b, 0, inEnd - inPos);
+            System.arraycopy(data, off, b, inEnd - inPos, len);
+            in = b;
+            inPos = 0;
+            inEnd = b.length;
+        } else {
+            in = data;
+            inPos = off;
+            inEnd = off + len;
+        }
+        totalIn += len;
+        process();
+        if (inPos < inEnd && in == data) {
+            // Keep a copy of the remaining input, the buffer may be reused.
+            in = Arrays.copyOfRange(in, inPos, inEnd);
+            inEnd -= inPos;
+            inPos = 0;
+        }
+    }
+
+    @Override
+    protected void handleEnd() {
+        ended = true;
+        process();
+    }
+
+    @Override
+    protected void handleException(Exception exc) {
+        inflater.end();
+        super.handleException(exc);
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+        super.pause();
+    }
+
+    @Override
+    public void resume() {
+        resumeOutput();
+        if (!paused) {
+            super.resume();
+        }
+    }
+
+    /**
+     * Stop sending output without pausing the input.
+     */
+    void pauseOutput() {
+        paused = true;
+    }
+
+    /**
+     * Continue sending output without resuming the input.
+     */
+    void resumeOutput() {
+        paused = false;
+        process();
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    private void process() {
+        if (processing || exception) {
+            return;
+        }
+        processing = true;
+        try {
+            while (!paused && !exception && step()) {
+            }
+        } finally {
+            processing = false;
+        }
+        if (ended && !paused && !exception && inPos == inEnd) {
+            ended = false;
+            if (state == State.DONE || (state == State.HEADER && member && headerPos == 0)) {
+                inflater.end();
+                super.handleEnd();
+            } else {
+                handleException(new RuntimeException("Truncated compressed data"));
+            }
+        }
+    }
+
+    /**
+     * Process some of the input. Return false if more input is needed.
+     */
+    private boolean step() {
+        switch (state) {
+        case HEADER:
+            while (inPos < inEnd) {
+                if (header(in[inPos++] & 0xff)) {
+                    state = State.BODY;
+                    return true;
+                }
+                if (exception) {
+                    return false;
+                }
+            }
+            return false;
+        case BODY:
+            return inflate();
+        case TRAILER:
+            while (inPos < inEnd && trailerPos < 8) {
+                trailer[trailerPos++] = in[inPos++];
+            }
+            if (trailerPos < 8) {
+                return false;
+            }
+            if (getInt(trailer, 0) != (int) crc.getValue() || getInt(trailer, 4) != (int) inflater.getBytesWritten()) {
+                handleException(new RuntimeException("Corrupt gzip data"));
+                return false;
+            }
+            // Another gzip member may follow.
+            member = true;
+            crc.reset();
+            inflater.reset();
+            trailerPos = 0;
+            headerPos = 0;
+            state = State.HEADER;
+            return true;
+        case DONE:
+            if (inPos < inEnd) {
+                handleException(new RuntimeException("Trailing data after compressed data"));
+            }
+            return false;
+        }
+        return false;
+    }
+
+    private boolean inflate() {
+        if (in == null) {
+            return false;
+        }
+        inflater.setInput(in, inPos, inEnd - inPos);
+        if (out == null) {
+            out = bufferPool.acquire(OUTPUT_SIZE);
+        }
+        ChannelBuffer cb = out.getChannelBuffer();
+        int n;
+        try {
+            n = inflater.inflate(cb.array(), cb.arrayOffset(), OUTPUT_SIZE);
+        } catch (DataFormatException exc) {
+            handleException(new RuntimeException("Corrupt compressed data", exc));
+            return false;
+        }
+        inPos = inEnd - inflater.getRemaining();
+        if (inflater.needsDictionary()) {
+            handleException(new RuntimeException("Compressed data needs a dictionary"));
+            return false;
+        }
+        if (inflater.finished()) {
+            state = format == Format.GZIP ? State.TRAILER : State.DONE;
+        }
+        if (n > 0) {
+            totalOut += n;
+            if (totalOut > OUTPUT_SIZE && totalOut > maxRatio * totalIn) {
+                handleException(new LimitExceededException("Decompression ratio exceeded"));
+                return false;
+            }
+            if (format == Format.GZIP) {
+                crc.update(cb.array(), cb.arrayOffset(), n);
+            }
+            cb.writerIndex(n);
+            Buffer b = out;
+            out = null;
+            super.handleData(b);
+            return true;
+        }
+        return inflater.finished();
+    }
+
+    /**
+     * Read a byte of the gzip header. Return true when the header is
+     * complete.
+     */
+    private boolean header(int b) {
+        if (headerPos < 10) {
+            if ((headerPos == 0 && b != 0x1f) || (headerPos == 1 && b != 0x8b) || (headerPos == 2 && b != 8)) {
+                handleException(new RuntimeException("Not in gzip format"));
+                return false;
+            }
+            if (headerPos == 3) {
+                flags = b;
+            }
+            headerPos++;
+            return headerPos == 10 && nextField();
+        }
+        switch (field) {
+        case FEXTRA:
+            if (fieldPos < 2) {
+                extraLength |= b << (8 * fieldPos++);
+                return fieldPos == 2 && extraLength == 0 && nextField();
+            }
+            return --extraLength == 0 && nextField();
+        case FNAME:
+        case FCOMMENT:
+            return b == 0 && nextField();
+        case FHCRC:
+            return ++fieldPos == 2 && nextField();
+        }
+        return false;
+    }
+
+    /**
+     * Select the next optional header field in the order they appear. Return
+     * true if there are no more fields.
+     */
+    private boolean nextField() {
+        fieldPos = 0;
+        extraLength = 0;
+        for (int f : new int[] { FEXTRA, FNAME, FCOMMENT, FHCRC }) {
+            if ((flags & f) != 0) {
+                flags &= ~f;
+                field = f;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+}
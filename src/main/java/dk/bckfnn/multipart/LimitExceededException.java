@@ -0,0 +1,29 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+/**
+ * Signals that a request exceeded one of the MultipartOptions limits, so the
+ * caller can answer 413 or close the connection. Parsing has stopped, the
+ * buffered input is dropped and the input is paused.
+ */
+public class LimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+}
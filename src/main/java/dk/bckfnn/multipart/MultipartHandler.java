@@ -15,25 +15,120 @@
  */
 package dk.bckfnn.multipart;
 
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
 import org.vertx.java.core.streams.ReadStream;
+import org.vertx.java.core.streams.WriteStream;
 
 public class MultipartHandler extends BaseReadStream {
+    private final static Logger log = LoggerFactory.getLogger(MultipartHandler.class);
+
     final static byte[] CRLF = new byte[] { '\r', '\n' };
     final static byte[] MINUSMINUS = new byte[] { '-', '-' };
+    final static Delimiter CRLF_DELIMITER = new Delimiter(CRLF);
+    final static Charset UTF8 = Charset.forName("UTF-8");
+    final static byte[] MULTIPART_MIXED = "multipart/mixed".getBytes();
+    final static byte[] BASE64 = "base64".getBytes();
+    final static byte[] QUOTED_PRINTABLE = "quoted-printable".getBytes();
+    final static byte[] NAME = "name".getBytes();
+    final static byte[] FILENAME = "filename".getBytes();
+    final static byte[] BOUNDARY = "boundary".getBytes();
+    final static byte[] CHARSET = "charset".getBytes();
+    final static int FORM_FIELDS_SIZE = 32;
+    final static int MAX_PARSER_RESERVE = 128 * 1024;
 
+    private final MultipartOptions options;
+    private final HeaderNames names = new HeaderNames();
     private RecordParser parser = new RecordParser();
     private Part currentPart = null;
 
-    private String header;
+    private int headerCount;
+    private int partCount;
+    private int partsEnded;
+    private int depth; // Nesting of multipart/mixed parts
+    private long bodySize;
+    private long received;
+    private long contentLength = -1;
+    private boolean paused;
+    private boolean parsing;
+    private boolean ended;
     private Handler<FieldInfo> fieldHandler;
 
-    enum State {
+    // Measurements, only updated when options.metrics is set.
+    private final MultipartMetrics metrics;
+    private final long[] stateNanos = new long[State.values().length];
+    private long pausedAt;
+    private String errorCause;
+    private boolean reported;
+
+    // Input waiting to be relayed, only used in passthrough mode.
+    private WriteStream passthrough;
+    private final ArrayDeque<Buffer> relay = new ArrayDeque<>(2);
+    private boolean relayPaused;
+    private final Handler<Void> relayDrainHandler = new Handler<Void>() {
+        @Override
+        public void handle(Void arg) {
+            relayPaused = false;
+            if (!paused) {
+                MultipartHandler.super.resume();
+            }
+        }
+    };
+
+    // Progress events, only sent when a progressHandler is set.
+    private Handler<MultipartProgress> progressHandler;
+    private MultipartProgress progress;
+    private long startNanos;
+    private long progressAt; // Time of the last event
+
+    // Collected form fields, null unless options.collectFields is set.
+    private final Map<String, List<String>> formFields;
+    private String fieldName;
+    private byte[] fieldBytes = new byte[0];
+    private int fieldLength;
+    private long formSize;
+
+    private final Handler<ChannelBuffer> fieldSliceHandler = new Handler<ChannelBuffer>() {
+        @Override
+        public void handle(ChannelBuffer slice) {
+            appendField(slice);
+        }
+    };
+    private final Handler<Buffer> fieldDataHandler = new Handler<Buffer>() {
+        @Override
+        public void handle(Buffer buf) {
+            appendField(buf.getChannelBuffer());
+            bufferPool.release(buf);
+        }
+    };
+    private final Handler<Void> fieldEndHandler = new Handler<Void>() {
+        @Override
+        public void handle(Void arg) {
+            endField();
+        }
+    };
+    private final Handler<Exception> fieldExceptionHandler = new Handler<Exception>() {
+        @Override
+        public void handle(Exception exc) {
+            handleException(exc);
+        }
+    };
+
+    public enum State {
         PREAMPLE,
         PREHEADERS,
         HEADERS,
@@ -44,21 +139,46 @@ public class MultipartHandler extends BaseReadStream {
     State state = State.PREAMPLE;
 
     public MultipartHandler(HttpServerRequest request) {
+        this(request, new MultipartOptions());
+    }
+
+    public MultipartHandler(HttpServerRequest request, MultipartOptions options) {
+        this.options = options;
+        this.formFields = options.getCollectFields() ? new LinkedHashMap<String, List<String>>(FORM_FIELDS_SIZE) : null;
+        this.metrics = options.getMetrics();
+        bufferPool(options.getBufferPool());
         String contentType = request.headers().get("Content-Type");
-        System.out.println(contentType);
         Header h = new Header("content-type:" + contentType);
-        System.out.println(h.value);
+        if (log.isDebugEnabled()) {
+            log.debug("multipart request path=" + request.path + " contentType=" + h.value + " boundary=" + h.params.get("boundary"));
+        }
         if (h.value.equals("multipart/form-data")) {
+            String length = request.headers().get("Content-Length");
+            if (length != null) {
+                try {
+                    contentLength(Long.parseLong(length.trim()));
+                } catch (NumberFormatException exc) {
+                    // Parse the body without the hint.
+                }
+            }
             input(request);
             currentPart = new Part(null);
-            currentPart.boundary = h.params.get("boundary").getBytes();
+            currentPart.boundary(h.params.get("boundary").getBytes());
         } else {
             throw new RuntimeException("request is not multipart/form-data");
         }
     }
 
     public MultipartHandler(final byte[] boundary, ReadStream inputStream) {
+        this(boundary, inputStream, new MultipartOptions());
+    }
+
+    public MultipartHandler(final byte[] boundary, ReadStream inputStream, MultipartOptions options) {
         super(inputStream);
+        this.options = options;
+        this.formFields = options.getCollectFields() ? new LinkedHashMap<String, List<String>>(FORM_FIELDS_SIZE) : null;
+        this.metrics = options.getMetrics();
+        bufferPool(options.getBufferPool());
         currentPart = new Part(null);
         currentPart.boundary(boundary);
     }
@@ -68,98 +188,244 @@ public class MultipartHandler extends BaseReadStream {
         return this;
     }
 
+    /**
+     * Set the expected size of the request body. It is used to size the
+     * parser's buffer and to estimate the remaining time in the progress
+     * events. The request constructor sets it from the Content-Length header.
+     * A negative length is ignored.
+     * 
+     * @throws LimitExceededException if it is larger than
+     * options.maxRequestSize.
+     */
+    public MultipartHandler contentLength(long contentLength) {
+        if (contentLength < 0) {
+            return this;
+        }
+        if (contentLength > options.getMaxRequestSize()) {
+            throw new LimitExceededException("Request too large");
+        }
+        this.contentLength = contentLength;
+        parser.reserve((int) Math.min(contentLength, MAX_PARSER_RESERVE));
+        return this;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Set a handler that receives the progress of the request, at most once
+     * every options.progressInterval milliseconds while data arrives, and a
+     * last time when the request has been parsed. The MultipartProgress
+     * object is reused for every event.
+     */
+    public MultipartHandler progressHandler(Handler<MultipartProgress> progressHandler) {
+        this.progressHandler = progressHandler;
+        if (progress == null) {
+            progress = new MultipartProgress();
+        }
+        return this;
+    }
+
+    /**
+     * Relay the input buffers unchanged to the WriteStream while the parts
+     * are parsed. The fieldHandler still receives the FieldInfo of each
+     * part, but the body is only copied if a handler is set on it, and it is
+     * not decoded.
+     * 
+     * An input buffer is relayed when it has been parsed to its end, so the
+     * input is held back while a handler has paused the parser, and the
+     * buffer that violates a limit is not relayed. The input is paused while
+     * the write queue of the WriteStream is full.
+     */
+    public MultipartHandler passthrough(WriteStream out) {
+        this.passthrough = out;
+        return this;
+    }
+
+    /**
+     * Return the collected form fields, name to values in the order they
+     * appeared, or null if options.collectFields is not set. The map is
+     * complete when the endHandler is called.
+     */
+    public Map<String, List<String>> getFormFields() {
+        return formFields;
+    }
+
     private boolean parse() {
-        Buffer b;
+        ChannelBuffer slice;
 
         switch (state) {
         case PREAMPLE:
-            b = parser.parseDelimited(currentPart.boundary, 4096);
-            if (b == null) {
+            slice = parser.parseSlice(currentPart.boundary, options.getMaxPreamble());
+            if (slice == null) {
                 return false;
             }
             if (!parser.delimiterFound) {
-                handleException(new RuntimeException("Preamble too long"));
+                limit("Preamble too long");
             }
             state = State.PREHEADERS;
             break;
         case PREHEADERS:
-            b = parser.parseDelimited(CRLF, 4096);
-            if (b == null) {
+            slice = parser.parseSlice(CRLF_DELIMITER, options.getMaxHeaderLine());
+            if (slice == null) {
                 return false;
             }
             if (!parser.delimiterFound) {
-                handleException(new RuntimeException("Trailing data after delimiter"));
+                fail("Trailing data after delimiter");
                 break;
             }
-            if (b.length() == 2 && b.getByte(0) == '-' && b.getByte(1) == '-') {
+            int r = slice.readerIndex();
+            if (slice.readableBytes() == 2 && slice.getByte(r) == '-' && slice.getByte(r + 1) == '-') {
                 state = State.END;
-            } else if (b.length() == 0) {
-                currentPart.headers.clear();
+            } else if (!slice.readable()) {
+                currentPart.reset();
+                headerCount = 0;
                 state = State.HEADERS;
             } else {
-                handleException(new RuntimeException("Corrupt multipart"));
+                fail("Corrupt multipart");
             }
             break;
         case HEADERS:
-            b = parser.parseDelimited(CRLF, 4096);
-            if (b == null) {
+            slice = parser.parseSlice(CRLF_DELIMITER, options.getMaxHeaderLine());
+            if (slice == null) {
                 return false;
             }
             if (!parser.delimiterFound) {
-                handleException(new RuntimeException("Header line too long"));
+                limit("Header line too long");
+                break;
             }
-            if (b.length() > 0 && (b.getByte(0) == ' ' || b.getByte(0) == '\t')) {
-                if (header == null) {
-                    handleException(new RuntimeException("Illegal continuation header " + b.toString()));
+            RawHeaders headers = currentPart.headers;
+            if (slice.readable()) {
+                byte first = slice.getByte(slice.readerIndex());
+                if (first == ' ' || first == '\t') {
+                    if (headers.size() == 0) {
+                        fail("Illegal continuation header", slice.toString(UTF8));
+                        break;
+                    }
+                    headers.append(slice);
+                } else if (!headers.add(slice)) {
+                    fail("Illegal header", slice.toString(UTF8));
+                    break;
+                }
+                // Continuation lines count too, so the headers of a part are
+                // at most maxHeaders lines of maxHeaderLine bytes.
+                if (++headerCount > options.getMaxHeaders()) {
+                    limit("Too many headers");
+                }
+            } else {
+                if (++partCount > options.getMaxParts()) {
+                    limit("Too many parts");
+                    break;
                 }
-                header = header + b.toString();
-                return true;
-            }
-            if (b.length() == 0) {
-                currentPart.addHeader(header);
-                header = null;
 
-                Header contentType = currentPart.headers.get("content-type");
-                if (contentType != null && contentType.value.equals("multipart/mixed")) {
+                int contentType = headers.find(RawHeaders.CONTENT_TYPE);
+                if (contentType >= 0 && headers.valueEquals(contentType, MULTIPART_MIXED)) {
+                    String boundary = headers.param(contentType, BOUNDARY);
+                    if (boundary == null) {
+                        fail("Missing boundary");
+                        break;
+                    }
+                    if (++depth > options.getMaxDepth()) {
+                        limit("Nesting too deep");
+                        break;
+                    }
                     currentPart = new Part(currentPart);
-                    currentPart.boundary(contentType.params.get("boundary").getBytes());
+                    currentPart.boundary(boundary.getBytes());
                     state = State.PREAMPLE;
+                } else if (!accept(headers)) {
+                    // Filtered out, the fieldHandler is not called.
+                    currentPart.skip = true;
+                    state = State.BODY;
                 } else {
-                    makeFile();
-                    Header contentTransferEncoding = currentPart.headers.get("content-transfer-encoding");
-                    if (contentTransferEncoding != null && contentTransferEncoding.value.equals("base64")) {
-                        Base64DecodeHandler b64 = new Base64DecodeHandler();
-                        b64.dataHandler(currentPart.dataHandler);
-                        b64.endHandler(currentPart.endHandler);
-                        b64.exceptionHandler(currentPart.exceptionHandler);
-                        b64.input(currentPart);
+                    boolean collect = collectField();
+                    if (!collect) {
+                        makeFile();
+                    }
+                    if (currentPart.skip) {
+                        state = State.BODY;
+                        break;
+                    }
+                    int contentTransferEncoding = passthrough == null ? headers.find(RawHeaders.CONTENT_TRANSFER_ENCODING) : -1;
+                    BaseReadStream decoder = null;
+                    if (contentTransferEncoding >= 0 && headers.valueEquals(contentTransferEncoding, BASE64)) {
+                        decoder = new Base64DecodeHandler();
+                    } else if (contentTransferEncoding >= 0 && headers.valueEquals(contentTransferEncoding, QUOTED_PRINTABLE)) {
+                        decoder = new QuotedPrintableDecodeHandler();
+                    }
+                    // Chain the decoders between the part and its handlers.
+                    Handler<Buffer> dataHandler = currentPart.dataHandler;
+                    Handler<Void> endHandler = currentPart.endHandler;
+                    Handler<Exception> exceptionHandler = currentPart.exceptionHandler;
+                    BaseReadStream source = currentPart;
+                    if (decoder != null) {
+                        decoder.bufferPool(options.getBufferPool());
+                        decoder.input(source);
+                        source = decoder;
+                    }
+                    if (options.getInflate() && passthrough == null) {
+                        int contentEncoding = headers.find(RawHeaders.CONTENT_ENCODING);
+                        InflateReadStream.Format format = null;
+                        if (contentEncoding >= 0) {
+                            format = InflateReadStream.forEncoding(headers.value(contentEncoding));
+                        } else if (contentType >= 0) {
+                            format = InflateReadStream.forContentType(headers.value(contentType));
+                        }
+                        if (format != null) {
+                            currentPart.inflate = new InflateReadStream(format, options.getMaxInflateRatio());
+                            currentPart.inflate.bufferPool(options.getBufferPool());
+                            currentPart.inflate.input(source);
+                            source = currentPart.inflate;
+                        }
+                    }
+                    if (currentPart.digest != null && source != currentPart) {
+                        // Digest the decoded data, otherwise the part digests the slices.
+                        currentPart.digest.input(source);
+                        source = currentPart.digest;
+                    }
+                    if (source != currentPart) {
+                        currentPart.decoder = source;
+                        source.dataHandler(dataHandler);
+                        source.endHandler(endHandler);
+                        source.exceptionHandler(exceptionHandler);
+                    } else if (collect) {
+                        // Nothing to decode, copy the slices straight into the field.
+                        currentPart.dataHandler = null;
+                        currentPart.sliceHandler = fieldSliceHandler;
                     }
 
                     state = State.BODY;
                 }
-            } else if (b.getByte(0) == ' ' || b.getByte(0) == '\t') {
-                header = header + b.toString();
-            } else {
-                currentPart.addHeader(header);
-                header = b.toString();
             }
             break;
         case BODY:
-            b = parser.parseDelimited(currentPart.bodyBoundary(), 4096);
-            if (b == null) {
+            if (currentPart.skip) {
+                return skipBody();
+            }
+            slice = parser.parseSlice(currentPart.bodyBoundary(), options.getBodyChunkSize());
+            if (slice == null) {
                 return false;
             }
-            //System.out.println("file data: " + b);
-            currentPart.handleData(b);
+            bodySize += slice.readableBytes();
+            if (bodySize > options.getMaxBodySize()) {
+                limit("Body too large");
+                break;
+            }
+            currentPart.handleSlice(slice);
 
             if (parser.delimiterFound) {
+                partsEnded++;
                 currentPart.handleEnd();
+                if (metrics != null) {
+                    metrics.partEnded(currentPart.size, currentPart.decoder != null ? currentPart.decoder.bytesOut : -1);
+                }
                 state = State.PREHEADERS;
             }
             break;
         case END:
             if (currentPart.parent != null) {
                 currentPart = currentPart.parent;
+                depth--;
                 state = State.PREAMPLE;
             } else {
                 return false;
@@ -169,24 +435,327 @@ public class MultipartHandler extends BaseReadStream {
         return true;
     }
 
+    /**
+     * Scan the body of a skipped part for the boundary without slicing it or
+     * calling any handler. Return false if more input is needed.
+     */
+    private boolean skipBody() {
+        int n = parser.skip(currentPart.bodyBoundary());
+        currentPart.size += n;
+        bodySize += n;
+        if (bodySize > options.getMaxBodySize()) {
+            limit("Body too large");
+            return true;
+        }
+        if (!parser.delimiterFound) {
+            return false;
+        }
+        partsEnded++;
+        if (metrics != null) {
+            metrics.partEnded(currentPart.size, -1);
+        }
+        state = State.PREHEADERS;
+        return true;
+    }
+
+    /**
+     * Return false if the part is filtered out by options.acceptNames or
+     * options.acceptContentTypes.
+     */
+    private boolean accept(RawHeaders headers) {
+        String[] acceptNames = options.getAcceptNames();
+        if (acceptNames != null) {
+            int disposition = headers.find(RawHeaders.CONTENT_DISPOSITION);
+            String name = disposition >= 0 ? headers.param(disposition, NAME) : null;
+            if (name == null || !Arrays.asList(acceptNames).contains(name)) {
+                return false;
+            }
+        }
+        String[] acceptContentTypes = options.getAcceptContentTypes();
+        if (acceptContentTypes != null) {
+            int contentType = headers.find(RawHeaders.CONTENT_TYPE);
+            String type = contentType >= 0 ? headers.value(contentType) : "text/plain";
+            for (String accept : acceptContentTypes) {
+                if (accept.endsWith("/*") ? type.regionMatches(true, 0, accept, 0, accept.length() - 1) : type.equalsIgnoreCase(accept)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
     private void makeFile() {
-        fieldHandler.handle(currentPart);
+        if (fieldHandler != null) {
+            fieldHandler.handle(currentPart);
+        }
+    }
+
+    /**
+     * Start collecting the current part into the form fields if it is a
+     * named part without a filename. Return true if the part is collected.
+     */
+    private boolean collectField() {
+        if (formFields == null) {
+            return false;
+        }
+        String name = currentPart.getName();
+        if (name == null || currentPart.getFilename() != null) {
+            return false;
+        }
+        fieldName = name;
+        fieldLength = 0;
+        currentPart.collect = true;
+        currentPart.dataHandler = fieldDataHandler;
+        currentPart.endHandler = fieldEndHandler;
+        currentPart.exceptionHandler = fieldExceptionHandler;
+        return true;
+    }
+
+    private void appendField(ChannelBuffer data) {
+        int n = data.readableBytes();
+        if (fieldLength + n > options.getMaxFieldSize()) {
+            limit("Field too large", fieldName);
+            return;
+        }
+        formSize += n;
+        if (formSize > options.getMaxFormSize()) {
+            limit("Form too large");
+            return;
+        }
+        if (fieldLength + n > fieldBytes.length) {
+            fieldBytes = Arrays.copyOf(fieldBytes, Math.max(256, Math.max(fieldBytes.length * 2, fieldLength + n)));
+        }
+        data.getBytes(data.readerIndex(), fieldBytes, fieldLength, n);
+        fieldLength += n;
+    }
+
+    /**
+     * Decode the collected field with the charset from the Content-Type
+     * header, UTF-8 by default, and add it to the form fields.
+     */
+    private void endField() {
+        if (exception) {
+            return;
+        }
+        Charset charset = UTF8;
+        int contentType = currentPart.headers.find(RawHeaders.CONTENT_TYPE);
+        if (contentType >= 0) {
+            String name = currentPart.headers.param(contentType, CHARSET);
+            if (name != null) {
+                try {
+                    charset = Charset.forName(name);
+                } catch (IllegalArgumentException exc) {
+                    fail("Unsupported charset", name);
+                    return;
+                }
+            }
+        }
+        List<String> values = formFields.get(fieldName);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            formFields.put(fieldName, values);
+        }
+        values.add(new String(fieldBytes, 0, fieldLength, charset));
+    }
+
+    /**
+     * Fail with an error that is reported to the metrics by its cause.
+     */
+    private void fail(String cause) {
+        errorCause = cause;
+        handleException(new RuntimeException(cause));
+    }
+
+    private void fail(String cause, String detail) {
+        errorCause = cause;
+        handleException(new RuntimeException(cause + " " + detail));
+    }
+
+    private void limit(String cause) {
+        errorCause = cause;
+        handleException(new LimitExceededException(cause));
+    }
+
+    private void limit(String cause, String detail) {
+        errorCause = cause;
+        handleException(new LimitExceededException(cause + " " + detail));
+    }
+
+    @Override
+    protected void handleException(Exception exc) {
+        if (log.isDebugEnabled() && !exception) {
+            log.debug("multipart failed state=" + state + " parts=" + partCount + " cause=" + errorCause + " message=" + exc.getMessage());
+        }
+        if (!exception) {
+            // Stop reading and drop the buffered input, also the input that
+            // failed to parse is not relayed.
+            if (input != null) {
+                input.pause();
+            }
+            if (state == State.BODY && !currentPart.skip && !currentPart.collect) {
+                // Let the handlers of the part clean up, e.g. delete a partial file.
+                currentPart.fail(exc);
+            }
+            parser.clear();
+            relay.clear();
+        }
+        if (metrics != null && !exception) {
+            metrics.error(errorCause != null ? errorCause : exc.getClass().getName(), exc);
+            report(false);
+        }
+        super.handleException(exc);
+    }
+
+    /**
+     * Report the totals for the request to the metrics.
+     */
+    private void report(boolean success) {
+        if (reported) {
+            return;
+        }
+        reported = true;
+        for (State s : State.values()) {
+            if (stateNanos[s.ordinal()] > 0) {
+                metrics.stateTime(s, stateNanos[s.ordinal()]);
+            }
+        }
+        metrics.requestEnded(partCount, received, success);
     }
 
     @Override
     public void handleData(Buffer buffer) {
+        if (progressHandler != null && received == 0) {
+            startNanos = progressAt = System.nanoTime();
+        }
+        received += buffer.length();
+        if (metrics != null) {
+            metrics.bytesReceived(buffer.length());
+        }
+        if (received > options.getMaxRequestSize()) {
+            limit("Request too large");
+            return;
+        }
         parser.add(buffer);
-        while (parse() && !exception) {
-            //System.out.println("State:" + state + " " + currentPart);
+        if (passthrough != null) {
+            relay.add(buffer);
+        }
+        parseBuffered();
+        if (progressHandler != null && !exception) {
+            progress(false);
         }
     }
 
     @Override
     public void handleEnd() {
-        if (state != State.END) {
-            handleException(new RuntimeException("illegal end state"));
-        } else {
-            super.handleEnd();
+        ended = true;
+        parseBuffered();
+    }
+
+    /**
+     * Parse the buffered input until more input is needed or the handler is
+     * paused. A resume() from a handler called by the parser just clears the
+     * paused flag, the running loop then continues.
+     */
+    private void parseBuffered() {
+        if (parsing) {
+            return;
+        }
+        parsing = true;
+        try {
+            if (metrics == null) {
+                while (!paused && !exception && parse()) {
+                }
+            } else {
+                boolean more = true;
+                while (more && !paused && !exception) {
+                    int s = state.ordinal();
+                    long start = System.nanoTime();
+                    more = parse();
+                    stateNanos[s] += System.nanoTime() - start;
+                }
+            }
+        } finally {
+            parsing = false;
+        }
+        if (!relay.isEmpty() && !paused && !exception) {
+            relay();
+        }
+        if (ended && !paused && !exception) {
+            ended = false;
+            if (state != State.END) {
+                fail("illegal end state");
+            } else {
+                if (metrics != null) {
+                    report(true);
+                }
+                if (progressHandler != null) {
+                    progress(true);
+                }
+                super.handleEnd();
+            }
+        }
+    }
+
+    /**
+     * Send a progress event if the interval has passed since the last one,
+     * or if the request has ended.
+     */
+    private void progress(boolean end) {
+        long now = System.nanoTime();
+        if (!end && now - progressAt < options.getProgressInterval() * 1000000) {
+            return;
+        }
+        progressAt = now;
+        progress.bytesReceived = received;
+        progress.contentLength = contentLength;
+        progress.partsCompleted = partsEnded;
+        progress.elapsedNanos = now - startNanos;
+        progress.ended = end;
+        progressHandler.handle(progress);
+    }
+
+    /**
+     * Write the input that has been parsed to the passthrough stream, and
+     * pause the input if its write queue is full.
+     */
+    private void relay() {
+        Buffer buf;
+        while ((buf = relay.poll()) != null) {
+            passthrough.writeBuffer(buf);
+        }
+        if (passthrough.writeQueueFull() && !relayPaused) {
+            relayPaused = true;
+            super.pause();
+            passthrough.drainHandler(relayDrainHandler);
+        }
+    }
+
+    /**
+     * Pause the input and stop parsing. Data already buffered is kept and
+     * parsed when resumed, so at most one input buffer is held while paused.
+     */
+    @Override
+    public void pause() {
+        if (metrics != null && !paused) {
+            pausedAt = System.nanoTime();
+            metrics.paused();
+        }
+        paused = true;
+        super.pause();
+    }
+
+    @Override
+    public void resume() {
+        if (metrics != null && paused) {
+            metrics.resumed(System.nanoTime() - pausedAt);
+        }
+        paused = false;
+        // Parse the buffered input first, the handlers may pause again before
+        // it is all parsed and then the input must stay paused.
+        parseBuffered();
+        if (!paused && !relayPaused) {
+            super.resume();
         }
     }
 
@@ -197,7 +766,59 @@ public class MultipartHandler extends BaseReadStream {
 
         public String getContentType();
 
+        /**
+         * Return a header of the part, or null. The header names are not case
+         * sensitive. The Header objects are only created on the first call.
+         */
         public Header getHeader(String headerName);
+
+        /**
+         * Set a handler that receives the body data as read-only slices of
+         * the parser's input buffer, without copying. A slice is only valid
+         * until the handler returns; use copy() to keep the data.
+         * 
+         * The data is only copied into a Buffer when a dataHandler is also
+         * set.
+         */
+        public void sliceHandler(Handler<ChannelBuffer> sliceHandler);
+
+        /**
+         * Take a Buffer with room for at least size bytes from the
+         * MultipartOptions.bufferPool. Give it back with release() when it
+         * is no longer used.
+         */
+        public Buffer acquire(int size);
+
+        /**
+         * Give a Buffer received from the dataHandler back to the
+         * MultipartOptions.bufferPool so it can be reused. The Buffer must
+         * not be used after this.
+         */
+        public void release(Buffer buf);
+
+        /**
+         * Return a ReadStream that passes the body data to its handlers on the
+         * MultipartOptions.worker Executor, in order. Must be called from the
+         * fieldHandler, instead of setting handlers on the FieldInfo.
+         * 
+         * The FieldInfo is reused for the next part, so the headers must be
+         * read in the fieldHandler and not on the worker.
+         */
+        public WorkerReadStream offload();
+
+        /**
+         * Return the digest of the decoded body computed with one of the
+         * MultipartOptions.digests algorithms, or null. The digests are
+         * available when the endHandler is called.
+         */
+        public byte[] getDigest(String algorithm);
+
+        /**
+         * Discard the body of the part. The parser only scans it for the
+         * boundary, and no handlers of the part are called. Must be called
+         * from the fieldHandler.
+         */
+        public void skip();
     }
 
     /**
@@ -207,12 +828,23 @@ public class MultipartHandler extends BaseReadStream {
     class Part extends BaseReadStream implements FieldInfo {
         public Part(Part parent) {
             this.parent = parent;
+            bufferPool(options.getBufferPool());
+            if (options.getDigests() != null) {
+                digest = new DigestReadStream(options.getDigests());
+            }
         }
 
-        private Map<String, Header> headers = new HashMap<>();
-        private byte[] boundary;
-        private byte[] bodyBoundary;
+        private RawHeaders headers = new RawHeaders(names);
+        private Handler<ChannelBuffer> sliceHandler;
+        private Delimiter boundary;
+        private Delimiter bodyBoundary;
         private Part parent;
+        private InflateReadStream inflate;
+        private BaseReadStream decoder; // The last decoder the data goes through
+        private long size;
+        private DigestReadStream digest;
+        private boolean skip;
+        private boolean collect; // Collected into the form fields
 
         /**
          * Set the boundary for remaining parts. Adds a -- in front of the
@@ -221,9 +853,10 @@ public class MultipartHandler extends BaseReadStream {
          * @param boundary
          */
         void boundary(byte[] boundary) {
-            this.boundary = new byte[boundary.length + 2];
-            System.arraycopy(MINUSMINUS, 0, this.boundary, 0, 2);
-            System.arraycopy(boundary, 0, this.boundary, 2, boundary.length);
+            byte[] b = new byte[boundary.length + 2];
+            System.arraycopy(MINUSMINUS, 0, b, 0, 2);
+            System.arraycopy(boundary, 0, b, 2, boundary.length);
+            this.boundary = new Delimiter(b);
         }
 
         /**
@@ -231,59 +864,94 @@ public class MultipartHandler extends BaseReadStream {
          * boundary
          * because the
          * 
+         * The delimiter and its search tables are built once and cached.
+         * 
          * @return
          */
-        byte[] bodyBoundary() {
+        Delimiter bodyBoundary() {
             if (bodyBoundary == null) {
-                bodyBoundary = new byte[boundary.length + 2];
-                System.arraycopy(CRLF, 0, bodyBoundary, 0, 2);
-                System.arraycopy(boundary, 0, bodyBoundary, 2, boundary.length);
+                byte[] b = new byte[boundary.bytes.length + 2];
+                System.arraycopy(CRLF, 0, b, 0, 2);
+                System.arraycopy(boundary.bytes, 0, b, 2, boundary.bytes.length);
+                bodyBoundary = new Delimiter(b);
             }
             return bodyBoundary;
         }
 
-        private void addHeader(String header) {
-            if (header == null) {
-                return;
+        /**
+         * Prepare the part for the headers of the next sibling part.
+         */
+        void reset() {
+            headers.clear();
+            inflate = null;
+            decoder = null;
+            size = 0;
+            skip = false;
+            collect = false;
+            if (digest != null) {
+                digest.reset();
             }
+            dataHandler = null;
+            endHandler = null;
+            exceptionHandler = null;
+            sliceHandler = null;
+        }
 
-            Header h = new Header(header);
+        public String toString() {
+            return boundary + " " + headers;
+        }
 
-            Header old = headers.get(h.name);
-            if (old != null) {
-                old.value = "," + h.value;
-            } else {
-                headers.put(h.name, h);
+        /**
+         * Deliver a slice of body data. A copy is only made for the
+         * dataHandler, into a Buffer from the pool. The decoders do not keep
+         * their input, so the Buffer is released when a decoder is done.
+         */
+        void handleSlice(ChannelBuffer slice) {
+            size += slice.readableBytes();
+            if (digest != null && decoder == null) {
+                digest.update(slice);
+            }
+            if (sliceHandler != null) {
+                sliceHandler.handle(slice);
+            }
+            if (dataHandler != null) {
+                Buffer buf = bufferPool.acquire(slice.readableBytes());
+                buf.getChannelBuffer().writeBytes(slice, slice.readerIndex(), slice.readableBytes());
+                handleData(buf);
+                if (decoder != null) {
+                    bufferPool.release(buf);
+                }
             }
         }
 
-        public String toString() {
-            return new String(boundary) + " " + headers;
+        @Override
+        public void sliceHandler(Handler<ChannelBuffer> sliceHandler) {
+            this.sliceHandler = sliceHandler;
         }
 
         @Override
         public String getName() {
-            Header contentDisposition = headers.get("content-disposition");
-            if (contentDisposition != null) {
-                return contentDisposition.params.get("name");
+            int contentDisposition = headers.find(RawHeaders.CONTENT_DISPOSITION);
+            if (contentDisposition >= 0) {
+                return headers.param(contentDisposition, NAME);
             }
             return null;
         }
 
         @Override
         public String getFilename() {
-            Header contentDisposition = headers.get("content-disposition");
-            if (contentDisposition != null) {
-                return contentDisposition.params.get("filename");
+            int contentDisposition = headers.find(RawHeaders.CONTENT_DISPOSITION);
+            if (contentDisposition >= 0) {
+                return headers.param(contentDisposition, FILENAME);
             }
             return null;
         }
 
         @Override
         public String getContentType() {
-            Header contentType = headers.get("content-type");
-            if (contentType != null) {
-                return contentType.value;
+            int contentType = headers.find(RawHeaders.CONTENT_TYPE);
+            if (contentType >= 0) {
+                return headers.value(contentType);
             }
             return null;
         }
@@ -293,17 +961,353 @@ public class MultipartHandler extends BaseReadStream {
             return headers.get(headerName);
         }
 
+        @Override
+        public void skip() {
+            skip = true;
+        }
+
+        @Override
+        public byte[] getDigest(String algorithm) {
+            return digest != null ? digest.getDigest(algorithm) : null;
+        }
+
+        @Override
+        protected void handleEnd() {
+            if (digest != null && decoder == null) {
+                digest.finish();
+            }
+            super.handleEnd();
+        }
+
+        /**
+         * Send the exception through the decoders to the exceptionHandler,
+         * unless a decoder has already failed and reported its own exception.
+         */
+        void fail(Exception exc) {
+            if (decoder == null || !decoder.exception) {
+                handleException(exc);
+            }
+        }
+
+        @Override
+        public WorkerReadStream offload() {
+            if (options.getWorker() == null) {
+                throw new IllegalStateException("No worker in the MultipartOptions");
+            }
+            WorkerReadStream stream = new WorkerReadStream(this, options.getWorker(), options.getEventLoop(), options.getMaxWorkerQueue());
+            stream.bufferPool(bufferPool);
+            return stream;
+        }
+
         @Override
         public void pause() {
             MultipartHandler.this.pause();
+            if (inflate != null) {
+                // Also stop the output already inflated from buffered input.
+                inflate.pauseOutput();
+            }
         }
 
         @Override
         public void resume() {
+            if (inflate != null) {
+                inflate.resumeOutput();
+                if (inflate.isPaused()) {
+                    return;
+                }
+            }
             MultipartHandler.this.resume();
         }
     }
 
+    /**
+     * The header lines of a part, kept as bytes. The common headers are
+     * recognized when a line is added, and their values and parameters are
+     * read directly from the bytes. Header objects are only created when a
+     * header is asked for by name, with names from a HeaderNames.
+     */
+    public static class RawHeaders {
+        public final static int CONTENT_DISPOSITION = 0;
+        public final static int CONTENT_TYPE = 1;
+        public final static int CONTENT_TRANSFER_ENCODING = 2;
+        public final static int CONTENT_ENCODING = 3;
+
+        final static byte[][] KNOWN = {
+                "content-disposition".getBytes(),
+                "content-type".getBytes(),
+                "content-transfer-encoding".getBytes(),
+                "content-encoding".getBytes(),
+        };
+        final static byte[] NAME_SEP = { ':' };
+        final static byte[] VALUE_SEP = { ',', ';' };
+        final static byte[] PARAM_SEP = { '=', ',', ';' };
+
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int[] starts = new int[8]; // Start of each line
+        private int[] values = new int[8]; // Position after the colon
+        private int[] ends = new int[8]; // End of each line
+        private int count;
+        private final int[] known = new int[KNOWN.length];
+        private final HeaderNames names;
+        private Map<String, Header> map;
+
+        public RawHeaders() {
+            this(new HeaderNames());
+        }
+
+        public RawHeaders(HeaderNames names) {
+            this.names = names;
+            clear();
+        }
+
+        public void clear() {
+            length = 0;
+            count = 0;
+            Arrays.fill(known, -1);
+            map = null;
+        }
+
+        /**
+         * Return the number of header lines.
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Add a header line. Return false if the line does not start with a
+         * header name followed by a colon.
+         */
+        public boolean add(ChannelBuffer line) {
+            int start = length;
+            copy(line);
+            int p = skipWs(start, length);
+            int n = tokenEnd(p, length, NAME_SEP);
+            int c = skipWs(n, length);
+            if (n == p || c == length || bytes[c] != ':') {
+                length = start;
+                return false;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            values[count] = c + 1;
+            ends[count] = length;
+            for (int k = 0; k < KNOWN.length; k++) {
+                if (known[k] < 0 && equalsIgnoreCase(p, n, KNOWN[k])) {
+                    known[k] = count;
+                    break;
+                }
+            }
+            count++;
+            map = null;
+            return true;
+        }
+
+        /**
+         * Add a continuation line to the last header.
+         */
+        public void append(ChannelBuffer line) {
+            copy(line);
+            ends[count - 1] = length;
+            map = null;
+        }
+
+        /**
+         * Return the index of the first of the common headers, or -1 if the
+         * part does not have the header.
+         * 
+         * @param id one of the CONTENT_ constants.
+         */
+        public int find(int id) {
+            return known[id];
+        }
+
+        /**
+         * Return the value of a header without the parameters.
+         */
+        public String value(int index) {
+            int p = skipWs(values[index], ends[index]);
+            return string(p, valueEnd(p, ends[index]));
+        }
+
+        /**
+         * Compare the value of a header with a lower case name, ignoring case.
+         */
+        public boolean valueEquals(int index, byte[] lowerCase) {
+            int p = skipWs(values[index], ends[index]);
+            return equalsIgnoreCase(p, valueEnd(p, ends[index]), lowerCase);
+        }
+
+        /**
+         * Return the value of a header parameter, or null if the parameter is
+         * not present or has no value.
+         * 
+         * @param lowerCase the lower case name of the parameter.
+         */
+        public String param(int index, byte[] lowerCase) {
+            int end = ends[index];
+            int p = skipWs(values[index], end);
+            p = skipWs(valueEnd(p, end), end);
+            while (p < end && (bytes[p] == ',' || bytes[p] == ';')) {
+                p = skipWs(p + 1, end);
+                int n = tokenEnd(p, end, PARAM_SEP);
+                boolean match = equalsIgnoreCase(p, n, lowerCase);
+                p = skipWs(n, end);
+                if (p < end && bytes[p] == '=') {
+                    int v = skipWs(p + 1, end);
+                    p = valueEnd(v, end);
+                    if (match) {
+                        return string(v, p);
+                    }
+                    p = skipWs(p, end);
+                } else if (match) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Return the header with the name, parsing the header lines on the
+         * first call. Repeated headers are joined with a comma.
+         */
+        public Header get(String name) {
+            if (map == null) {
+                map = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    Header h = header(i);
+                    Header old = map.get(h.name);
+                    if (old != null) {
+                        old.value = old.value + "," + h.value;
+                    } else {
+                        map.put(h.name, h);
+                    }
+                }
+            }
+            return map.get(name.toLowerCase());
+        }
+
+        private Header header(int index) {
+            int end = ends[index];
+            int p = skipWs(starts[index], end);
+            Header h = new Header(names.get(bytes, p, tokenEnd(p, end, NAME_SEP) - p), value(index));
+            p = skipWs(values[index], end);
+            p = skipWs(valueEnd(p, end), end);
+            while (p < end && (bytes[p] == ',' || bytes[p] == ';')) {
+                p = skipWs(p + 1, end);
+                int n = tokenEnd(p, end, PARAM_SEP);
+                String paramName = names.get(bytes, p, n - p);
+                String paramValue = null;
+                p = skipWs(n, end);
+                if (p < end && bytes[p] == '=') {
+                    int v = skipWs(p + 1, end);
+                    p = valueEnd(v, end);
+                    paramValue = string(v, p);
+                    p = skipWs(p, end);
+                }
+                h.params.put(paramName, paramValue);
+            }
+            return h;
+        }
+
+        private void copy(ChannelBuffer line) {
+            int n = line.readableBytes();
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+            line.getBytes(line.readerIndex(), bytes, length, n);
+            length += n;
+        }
+
+        private int skipWs(int p, int end) {
+            while (p < end && (bytes[p] == ' ' || bytes[p] == '\t')) {
+                p++;
+            }
+            return p;
+        }
+
+        private int tokenEnd(int p, int end, byte[] sep) {
+            for (; p < end; p++) {
+                byte b = bytes[p];
+                if (b == ' ' || b == '\t') {
+                    break;
+                }
+                for (int i = 0; i < sep.length; i++) {
+                    if (b == sep[i]) {
+                        return p;
+                    }
+                }
+            }
+            return p;
+        }
+
+        /**
+         * Return the end of a token or a quoted string value.
+         */
+        private int valueEnd(int p, int end) {
+            if (p < end && bytes[p] == '"') {
+                for (p++; p < end; p++) {
+                    if (bytes[p] == '"') {
+                        return p + 1;
+                    }
+                    if (bytes[p] == '\\') {
+                        p++;
+                    }
+                }
+                return end;
+            }
+            return tokenEnd(p, end, VALUE_SEP);
+        }
+
+        /**
+         * Return a value as a string, removing quotes and escapes.
+         */
+        private String string(int p, int end) {
+            if (p == end || bytes[p] != '"') {
+                return new String(bytes, p, end - p, UTF8);
+            }
+            byte[] b = new byte[end - p];
+            int n = 0;
+            for (p++; p < end && bytes[p] != '"'; p++) {
+                if (bytes[p] == '\\' && p + 1 < end) {
+                    p++;
+                }
+                b[n++] = bytes[p];
+            }
+            return new String(b, 0, n, UTF8);
+        }
+
+        private boolean equalsIgnoreCase(int p, int end, byte[] lowerCase) {
+            if (end - p != lowerCase.length) {
+                return false;
+            }
+            for (int i = 0; i < lowerCase.length; i++) {
+                byte b = bytes[p + i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != lowerCase[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sb.append(new String(bytes, starts[i], ends[i] - starts[i], UTF8));
+                sb.append("\r\n");
+            }
+            return sb.toString();
+        }
+    }
+
     /**
      * Utility class for parsing headers keys and values. It can parse and
      * return the tokens that makes up a header.
@@ -316,12 +1320,18 @@ public class MultipartHandler extends BaseReadStream {
         String header;
         int pos;
 
+        Header(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
         public Header(String header) {
             this.header = header;
             this.pos = 0;
 
             skipWs();
             name = getToken(':').toLowerCase();
+            skipWs();
             skip(':');
 
             skipWs();
@@ -331,7 +1341,7 @@ public class MultipartHandler extends BaseReadStream {
             while (has(',', ';')) {
                 skip(',', ';');
                 skipWs();
-                String paramName = getToken('=', ',', ';');
+                String paramName = getToken('=', ',', ';').toLowerCase();
                 String paramValue = null;
                 skipWs();
                 if (has('=')) {
@@ -408,6 +1418,18 @@ public class MultipartHandler extends BaseReadStream {
             return header.substring(pos);
         }
 
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getParam(String paramName) {
+            return params.get(paramName.toLowerCase());
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append(value);
@@ -424,45 +1446,241 @@ public class MultipartHandler extends BaseReadStream {
      * the flag delimiterFound indicate if the package was a result of a
      * delimiter of a full
      * buffer.
+     * 
+     * The parser owns its buffer. Bytes that have already been returned are
+     * discarded when the next input is added, so the memory held is bounded by
+     * the size of one input buffer plus the unreturned tail (less than max
+     * plus the delimiter length), regardless of the total size of the input.
      */
     public static class RecordParser {
         private Buffer buff;
 
         private int pos; // Current position in buffer
         private int start; // Position of beginning of current record
-        private int delimPos; // Position of current match in delimiter array
+        private int delimPos; // Number of delimiter bytes matched at pos
+        private int kmpEnd; // Use KMP until pos reaches this after a failed check
+        private Delimiter delimiter; // The delimiter pos refers to
+        long comparisons; // Input bytes compared, to test the search is linear
         public boolean delimiterFound = false;
 
+        /**
+         * Allocate the buffer with room for n bytes, if it is not allocated
+         * yet.
+         */
+        public void reserve(int n) {
+            if (buff == null) {
+                buff = new Buffer(n);
+            }
+        }
+
+        /**
+         * Drop the buffered input.
+         */
+        public void clear() {
+            buff = null;
+            pos = 0;
+            start = 0;
+            delimPos = 0;
+            kmpEnd = 0;
+        }
+
         public void add(Buffer buffer) {
             if (buff == null) {
-                this.buff = buffer;
-            } else {
-                this.buff.appendBuffer(buffer);
+                buff = new Buffer(buffer.length());
+            } else if (start > 0) {
+                compact();
             }
+            buff.appendBuffer(buffer);
+        }
+
+        /**
+         * Return the number of bytes held by the parser that have not yet been
+         * returned.
+         */
+        public int buffered() {
+            return buff == null ? 0 : buff.length() - start;
+        }
+
+        /**
+         * Move the unreturned tail of the buffer to the front, reusing the
+         * existing backing storage.
+         */
+        private void compact() {
+            ChannelBuffer cb = buff.getChannelBuffer();
+            cb.readerIndex(start);
+            cb.discardReadBytes();
+            pos -= start;
+            kmpEnd -= start;
+            start = 0;
         }
 
         public Buffer parseDelimited(byte[] delim, int max) {
+            return parseDelimited(new Delimiter(delim), max);
+        }
+
+        /**
+         * Like parseSlice() but return a copy of the record.
+         */
+        public Buffer parseDelimited(Delimiter delim, int max) {
+            ChannelBuffer slice = parseSlice(delim, max);
+            return slice == null ? null : new Buffer(slice);
+        }
+
+        /**
+         * Search for the delimiter. pos is the start of the next candidate
+         * match and delimPos the number of delimiter bytes already matched
+         * there, all bytes before pos are known not to start a match.
+         * 
+         * Full candidate windows are checked with the Boyer-Moore-Horspool
+         * algorithm. Near the end of the input, and while a partial match is
+         * pending, bytes are consumed one at a time using the KMP failure
+         * table. When a Horspool check fails after matching some bytes, KMP
+         * is used until pos has moved as many bytes as were compared, so
+         * repetitive input can't make the search quadratic. A partial match
+         * is kept across calls to add(), so bytes are never scanned again
+         * when more input arrives.
+         * 
+         * The record is returned as a read-only slice of the parser's buffer.
+         * It is only valid until the next call to add().
+         */
+        public ChannelBuffer parseSlice(Delimiter delim, int max) {
+            int recordStart = start;
+            int n = scan(delim, max);
+            return n < 0 ? null : slice(recordStart, n);
+        }
+
+        /**
+         * Discard the input up to and including the delimiter without
+         * returning it. delimiterFound is set if the delimiter was found,
+         * otherwise all input that can't be the start of the delimiter is
+         * discarded and more input is needed.
+         * 
+         * @return the number of bytes discarded, not counting the delimiter.
+         */
+        public int skip(Delimiter delim) {
+            int n = scan(delim, Integer.MAX_VALUE);
+            if (n >= 0) {
+                return n;
+            }
+            n = pos - start;
+            start = pos;
+            return n;
+        }
+
+        /**
+         * Search for the delimiter, see parseSlice(). Return the length of the
+         * record, which ends at the new start, or -1 if more input is needed.
+         */
+        private int scan(Delimiter delim, int max) {
+            delimiterFound = false;
+            if (delim != delimiter) {
+                delimiter = delim;
+                pos = start;
+                delimPos = 0;
+                kmpEnd = pos;
+            }
+            byte[] d = delim.bytes;
+            int[] skip = delim.skip;
+            int[] fail = delim.fail;
+            int last = d.length - 1;
+
+            ChannelBuffer cb = buff.getChannelBuffer();
+            byte[] arr = cb.array();
+            int off = cb.arrayOffset();
             int len = buff.length();
-            for (; pos < len && pos - start < max; pos++) {
-                if (buff.getByte(pos) == delim[delimPos]) {
+
+            while (pos - start < max) {
+                if (delimPos == 0 && pos >= kmpEnd && pos + last < len) {
+                    int j = last;
+                    while (arr[off + pos + j] == d[j]) {
+                        if (j == 0) {
+                            return found(d.length);
+                        }
+                        j--;
+                    }
+                    comparisons += last - j + 1;
+                    if (j < last) {
+                        kmpEnd = pos + last - j + 1;
+                    } else {
+                        pos += skip[arr[off + pos + last] & 0xff];
+                    }
+                    continue;
+                }
+
+                int i = pos + delimPos;
+                if (i >= len) {
+                    break;
+                }
+                comparisons++;
+                if (arr[off + i] == d[delimPos]) {
                     delimPos++;
-                    if (delimPos == delim.length) {
-                        Buffer ret = buff.getBuffer(start, pos - delim.length + 1);
-                        start = pos + 1;
-                        delimPos = 0;
-                        delimiterFound = true;
-                        return ret;
+                    if (delimPos == d.length) {
+                        return found(d.length);
                     }
+                } else if (delimPos == 0) {
+                    pos++;
+                } else {
+                    int k = fail[delimPos];
+                    pos += delimPos - k;
+                    delimPos = k;
                 }
             }
             if (pos - start >= max) {
-                delimiterFound = false;
-                Buffer ret = buff.getBuffer(start, pos);
-                start = pos;
-                delimPos = 0;
-                return ret;
+                start += max;
+                return max;
             }
-            return null;
+            return -1;
+        }
+
+        private int found(int delimLength) {
+            int n = pos - start;
+            pos += delimLength;
+            start = pos;
+            delimPos = 0;
+            delimiterFound = true;
+            return n;
+        }
+
+        private ChannelBuffer slice(int index, int length) {
+            return ChannelBuffers.unmodifiableBuffer(buff.getChannelBuffer().slice(index, length));
+        }
+    }
+
+    /**
+     * A delimiter with a precomputed Boyer-Moore-Horspool skip table and KMP
+     * failure table. A delimiter should be created once and reused for all
+     * searches.
+     */
+    public static class Delimiter {
+        final byte[] bytes;
+        final int[] skip = new int[256];
+        // fail[k] is the length of the longest proper prefix of the first k
+        // bytes that is also a suffix of them.
+        final int[] fail;
+
+        public Delimiter(byte[] bytes) {
+            this.bytes = bytes;
+            int last = bytes.length - 1;
+            Arrays.fill(skip, bytes.length);
+            for (int i = 0; i < last; i++) {
+                skip[bytes[i] & 0xff] = last - i;
+            }
+
+            fail = new int[bytes.length + 1];
+            int k = 0;
+            for (int i = 1; i < bytes.length; i++) {
+                while (k > 0 && bytes[i] != bytes[k]) {
+                    k = fail[k];
+                }
+                if (bytes[i] == bytes[k]) {
+                    k++;
+                }
+                fail[i + 1] = k;
+            }
+        }
+
+        public String toString() {
+            return new String(bytes);
         }
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import dk.bckfnn.multipart.MultipartHandler.State;
+
+/**
+ * Receives measurements from a MultipartHandler. Set it with
+ * MultipartOptions.metrics(). When no metrics are set the handler only pays
+ * for a null check.
+ * 
+ * The methods are called on the thread that parses the request and are
+ * passed primitive values only, nothing is allocated per call. An
+ * implementation shared by many handlers must be thread safe.
+ */
+public interface MultipartMetrics {
+    /**
+     * A chunk of the request body was received.
+     */
+    public void bytesReceived(int bytes);
+
+    /**
+     * The body of a part has ended.
+     * 
+     * @param size the size of the body in the request.
+     * @param decodedSize the size after transfer and content decoding, or -1
+     * if the part was not decoded.
+     */
+    public void partEnded(long size, long decodedSize);
+
+    /**
+     * The handler was paused.
+     */
+    public void paused();
+
+    /**
+     * The handler was resumed after being paused for pausedNanos.
+     */
+    public void resumed(long pausedNanos);
+
+    /**
+     * Parsing failed.
+     * 
+     * @param cause a fixed description of the error, like "Too many parts",
+     * or the exception class name when the error came from the input.
+     * @param exc the exception sent to the exceptionHandler.
+     */
+    public void error(String cause, Exception exc);
+
+    /**
+     * The time spent parsing in a state during the request. Called for each
+     * state just before requestEnded.
+     */
+    public void stateTime(State state, long nanos);
+
+    /**
+     * The request has ended or failed.
+     * 
+     * @param parts the number of parts, including nested multipart parts.
+     * @param bytes the size of the request body received.
+     * @param success false if the parsing failed.
+     */
+    public void requestEnded(int parts, long bytes, boolean success);
+}
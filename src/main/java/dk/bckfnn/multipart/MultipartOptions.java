@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Sizes and limits used by a MultipartHandler. The setters return this so
+ * they can be chained:
+ * 
+ * <pre>
+ * new MultipartHandler(request, new MultipartOptions().bodyChunkSize(128 * 1024).maxParts(10));
+ * </pre>
+ * 
+ * The limits are checked as the input arrives. When one is exceeded the
+ * exceptionHandler receives a LimitExceededException.
+ */
+public class MultipartOptions {
+    private int bodyChunkSize = 64 * 1024;
+    private int maxHeaderLine = 4096;
+    private int maxHeaders = 100;
+    private int maxPreamble = 4096;
+    private int maxParts = Integer.MAX_VALUE;
+    private long maxBodySize = Long.MAX_VALUE;
+    private long maxRequestSize = Long.MAX_VALUE;
+    private int maxDepth = 8;
+    private boolean inflate = false;
+    private long maxInflateRatio = InflateReadStream.DEFAULT_MAX_RATIO;
+    private boolean collectFields = false;
+    private int maxFieldSize = 64 * 1024;
+    private long maxFormSize = 1024 * 1024;
+    private BufferPool bufferPool = UnpooledBufferPool.INSTANCE;
+    private MultipartMetrics metrics = null;
+    private Executor worker = null;
+    private Executor eventLoop = null;
+    private long maxWorkerQueue = WorkerReadStream.DEFAULT_MAX_QUEUED;
+    private String[] digests = null;
+    private long progressInterval = 500;
+    private String[] acceptNames = null;
+    private String[] acceptContentTypes = null;
+
+    /**
+     * The maximum size of the body data passed to a part's dataHandler in a
+     * single call. Default 64Kb.
+     */
+    public MultipartOptions bodyChunkSize(int bodyChunkSize) {
+        this.bodyChunkSize = bodyChunkSize;
+        return this;
+    }
+
+    /**
+     * The maximum length of a single header line. Default 4096.
+     */
+    public MultipartOptions maxHeaderLine(int maxHeaderLine) {
+        this.maxHeaderLine = maxHeaderLine;
+        return this;
+    }
+
+    /**
+     * The maximum number of header lines in a part, including continuation
+     * lines. Default 100.
+     */
+    public MultipartOptions maxHeaders(int maxHeaders) {
+        this.maxHeaders = maxHeaders;
+        return this;
+    }
+
+    /**
+     * The maximum length of the preamble before the first boundary. Default
+     * 4096.
+     */
+    public MultipartOptions maxPreamble(int maxPreamble) {
+        this.maxPreamble = maxPreamble;
+        return this;
+    }
+
+    /**
+     * The maximum number of parts in the request, including nested parts.
+     * Default unlimited.
+     */
+    public MultipartOptions maxParts(int maxParts) {
+        this.maxParts = maxParts;
+        return this;
+    }
+
+    /**
+     * The maximum total size of the body data of all parts. Default
+     * unlimited.
+     */
+    public MultipartOptions maxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /**
+     * The maximum size of the whole request body, including delimiters and
+     * headers. Default unlimited.
+     */
+    public MultipartOptions maxRequestSize(long maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+        return this;
+    }
+
+    /**
+     * The maximum nesting depth of multipart/mixed parts. Default 8.
+     */
+    public MultipartOptions maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Decompress the body of parts with a gzip or deflate Content-Encoding
+     * header, or without a Content-Encoding and with an application/gzip or
+     * application/x-gzip Content-Type, before it is passed to the
+     * dataHandler. The Content-Type of the part is not changed. Default
+     * false.
+     */
+    public MultipartOptions inflate(boolean inflate) {
+        this.inflate = inflate;
+        return this;
+    }
+
+    /**
+     * The maximum ratio between the decompressed and the compressed size of
+     * a part. Default 100.
+     */
+    public MultipartOptions maxInflateRatio(long maxInflateRatio) {
+        this.maxInflateRatio = maxInflateRatio;
+        return this;
+    }
+
+    /**
+     * Collect the parts that have a name but no filename into the map
+     * returned by MultipartHandler.getFormFields() instead of passing them to
+     * the fieldHandler. Default false.
+     */
+    public MultipartOptions collectFields(boolean collectFields) {
+        this.collectFields = collectFields;
+        return this;
+    }
+
+    /**
+     * The maximum size of a single collected field. Default 64Kb.
+     */
+    public MultipartOptions maxFieldSize(int maxFieldSize) {
+        this.maxFieldSize = maxFieldSize;
+        return this;
+    }
+
+    /**
+     * The maximum total size of all collected fields. Default 1Mb.
+     */
+    public MultipartOptions maxFormSize(long maxFormSize) {
+        this.maxFormSize = maxFormSize;
+        return this;
+    }
+
+    /**
+     * The pool that the Buffers passed to the dataHandlers are taken from.
+     * Default a new Buffer for each call.
+     */
+    public MultipartOptions bufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * The listener that receives the measurements of the handler. Default
+     * none.
+     */
+    public MultipartOptions metrics(MultipartMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * The Executor that FieldInfo.offload() passes the data to, and an
+     * Executor that runs tasks on the event loop of the request, see
+     * WorkerReadStream.eventLoop(Vertx). Default none.
+     */
+    public MultipartOptions worker(Executor worker, Executor eventLoop) {
+        this.worker = worker;
+        this.eventLoop = eventLoop;
+        return this;
+    }
+
+    /**
+     * The number of bytes of an offloaded part that can wait for the worker
+     * before the request is paused. Default 256Kb.
+     */
+    public MultipartOptions maxWorkerQueue(long maxWorkerQueue) {
+        this.maxWorkerQueue = maxWorkerQueue;
+        return this;
+    }
+
+    /**
+     * Compute digests of the decoded body of every part with the
+     * DigestReadStream algorithms, such as "MD5" and "SHA-256". The digests
+     * are returned by FieldInfo.getDigest(). Default none.
+     */
+    public MultipartOptions digests(String... digests) {
+        this.digests = digests;
+        return this;
+    }
+
+    /**
+     * The minimum time in milliseconds between two events sent to the
+     * MultipartHandler progressHandler. Default 500.
+     */
+    public MultipartOptions progressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    /**
+     * Only pass the parts with one of these names to the fieldHandler. The
+     * body of the other parts is skipped, see FieldInfo.skip(). Default all
+     * parts.
+     */
+    public MultipartOptions acceptNames(String... acceptNames) {
+        this.acceptNames = acceptNames;
+        return this;
+    }
+
+    /**
+     * Only pass the parts with one of these content types, like "image/png"
+     * or "image/*", to the fieldHandler. A part without a Content-Type is
+     * text/plain. The body of the other parts is skipped. Default all parts.
+     */
+    public MultipartOptions acceptContentTypes(String... acceptContentTypes) {
+        this.acceptContentTypes = acceptContentTypes;
+        return this;
+    }
+
+    public int getBodyChunkSize() {
+        return bodyChunkSize;
+    }
+
+    public int getMaxHeaderLine() {
+        return maxHeaderLine;
+    }
+
+    public int getMaxHeaders() {
+        return maxHeaders;
+    }
+
+    public int getMaxPreamble() {
+        return maxPreamble;
+    }
+
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public long getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public boolean getInflate() {
+        return inflate;
+    }
+
+    public long getMaxInflateRatio() {
+        return maxInflateRatio;
+    }
+
+    public boolean getCollectFields() {
+        return collectFields;
+    }
+
+    public int getMaxFieldSize() {
+        return maxFieldSize;
+    }
+
+    public long getMaxFormSize() {
+        return maxFormSize;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public MultipartMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Executor getWorker() {
+        return worker;
+    }
+
+    public Executor getEventLoop() {
+        return eventLoop;
+    }
+
+    public long getMaxWorkerQueue() {
+        return maxWorkerQueue;
+    }
+
+    public String[] getDigests() {
+        return digests;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    public String[] getAcceptNames() {
+        return acceptNames;
+    }
+
+    public String[] getAcceptContentTypes() {
+        return acceptContentTypes;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+/**
+ * The progress of a request, passed to the MultipartHandler progressHandler.
+ * 
+ * The same object is updated and passed for every event of a handler, so
+ * nothing is allocated per event. Copy the values to keep them after the
+ * handler returns.
+ */
+public class MultipartProgress {
+    long bytesReceived;
+    long contentLength = -1;
+    int partsCompleted;
+    long elapsedNanos;
+    boolean ended;
+
+    /**
+     * Return the number of bytes of the request body received so far.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Return the Content-Length of the request, or -1 if it is not known.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Return the number of parts whose body has ended.
+     */
+    public int getPartsCompleted() {
+        return partsCompleted;
+    }
+
+    /**
+     * Return the number of bytes still to be received, or -1 if the
+     * Content-Length is not known.
+     */
+    public long getRemainingBytes() {
+        if (contentLength < 0) {
+            return -1;
+        }
+        return Math.max(0, contentLength - bytesReceived);
+    }
+
+    /**
+     * Return the time in milliseconds it will take to receive the rest of
+     * the request at the average rate so far, or -1 if it is not known.
+     */
+    public long getEstimatedRemainingMillis() {
+        long remaining = getRemainingBytes();
+        if (remaining < 0 || bytesReceived == 0) {
+            return -1;
+        }
+        return (long) ((double) elapsedNanos / bytesReceived * remaining / 1000000);
+    }
+
+    /**
+     * Return true for the last event, sent when the request has been parsed.
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+
+    @Override
+    public String toString() {
+        return "MultipartProgress [bytesReceived=" + bytesReceived + ", contentLength=" + contentLength + ", partsCompleted=" + partsCompleted + ", ended=" + ended + "]";
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.file.AsyncFile;
+import org.vertx.java.core.file.FileSystem;
+import org.vertx.java.core.net.NetSocket;
+import org.vertx.java.core.streams.ReadStream;
+import org.vertx.java.core.streams.WriteStream;
+
+/**
+ * Writes a multipart/form-data body to a WriteStream, such as an
+ * HttpClientRequest, the counterpart of MultipartHandler.
+ * 
+ * Fields and file parts are added in order and written one at a time. The
+ * delimiter and the fixed parts of the headers are encoded once, and each
+ * part's headers are written with the delimiter in a single Buffer. File
+ * content is pumped from its ReadStream, which is paused while the write
+ * queue of the output is full. When the output is a NetSocket, files given by
+ * path are sent with sendFile(), which uses FileChannel.transferTo();
+ * otherwise they are read with an AsyncFile.
+ * 
+ * Call end() after the last part. The resultHandler is called when the
+ * closing delimiter has been written, or when a part fails.
+ */
+public class MultipartWriter {
+    final static byte[] CRLF = { '\r', '\n' };
+    final static byte[] CONTENT_DISPOSITION = "Content-Disposition: form-data; name=\"".getBytes();
+    final static byte[] FILENAME = "\"; filename=\"".getBytes();
+    final static byte[] QUOTE = { '"' };
+    final static byte[] CONTENT_TYPE = "Content-Type: ".getBytes();
+
+    private final WriteStream out;
+    private final String boundary;
+    private final byte[] delimiter; // CRLF--boundary CRLF
+    private final byte[] close; // CRLF--boundary--CRLF
+
+    private final Queue<Part> parts = new ArrayDeque<>();
+    private Part current;
+    private int partCount;
+    private long bytesWritten;
+    private boolean ended;
+    private boolean done;
+    private boolean failed;
+    private AsyncResultHandler<MultipartWriter> resultHandler;
+
+    private final Handler<Void> drainHandler = new Handler<Void>() {
+        @Override
+        public void handle(Void arg) {
+            next();
+        }
+    };
+
+    /**
+     * Constructor. Use a random boundary.
+     */
+    public MultipartWriter(WriteStream out) {
+        this(out, "----" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param out the stream the body is written to.
+     * @param boundary the boundary, which must not occur in the content.
+     */
+    public MultipartWriter(WriteStream out, String boundary) {
+        this.out = out;
+        this.boundary = boundary;
+        this.delimiter = ("\r\n--" + boundary + "\r\n").getBytes(MultipartHandler.UTF8);
+        this.close = ("\r\n--" + boundary + "--\r\n").getBytes(MultipartHandler.UTF8);
+    }
+
+    /**
+     * Set the handler that is called when the body has been written or
+     * writing has failed.
+     */
+    public MultipartWriter resultHandler(AsyncResultHandler<MultipartWriter> resultHandler) {
+        this.resultHandler = resultHandler;
+        return this;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * Return the Content-Type header value of the body.
+     */
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * Return the number of bytes written so far, not counting files sent
+     * with sendFile().
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Add a form field.
+     */
+    public MultipartWriter field(String name, String value) {
+        Buffer head = head(name, null, null);
+        head.appendBytes(value.getBytes(MultipartHandler.UTF8));
+        return add(new Part(head));
+    }
+
+    /**
+     * Add a file part with the content read from a ReadStream. The stream is
+     * paused until the part is written.
+     */
+    public MultipartWriter file(String name, String filename, String contentType, ReadStream content) {
+        return add(new StreamPart(head(name, filename, contentType), content, null));
+    }
+
+    /**
+     * Add a file part with the content read from an AsyncFile. The file is
+     * closed when the part is written.
+     */
+    public MultipartWriter file(String name, String filename, String contentType, AsyncFile content) {
+        return add(new StreamPart(head(name, filename, contentType), content.getReadStream(), content));
+    }
+
+    /**
+     * Add a file part with the content of a file. The file is opened when the
+     * part is written.
+     */
+    public MultipartWriter file(String name, String filename, String contentType, FileSystem fileSystem, String path) {
+        return add(new PathPart(head(name, filename, contentType), fileSystem, path));
+    }
+
+    /**
+     * Write the closing delimiter after the parts that have been added.
+     */
+    public void end() {
+        ended = true;
+        next();
+    }
+
+    private MultipartWriter add(Part part) {
+        if (ended) {
+            throw new IllegalStateException("MultipartWriter has ended");
+        }
+        parts.add(part);
+        next();
+        return this;
+    }
+
+    /**
+     * Encode the delimiter and headers of a part.
+     */
+    private Buffer head(String name, String filename, String contentType) {
+        Buffer head = new Buffer(delimiter.length + 128);
+        if (partCount++ == 0) {
+            // No CRLF before the first delimiter.
+            head.getChannelBuffer().writeBytes(delimiter, CRLF.length, delimiter.length - CRLF.length);
+        } else {
+            head.appendBytes(delimiter);
+        }
+        head.appendBytes(CONTENT_DISPOSITION);
+        head.appendBytes(quote(name));
+        if (filename != null) {
+            head.appendBytes(FILENAME);
+            head.appendBytes(quote(filename));
+        }
+        head.appendBytes(QUOTE);
+        head.appendBytes(CRLF);
+        if (contentType != null) {
+            head.appendBytes(CONTENT_TYPE);
+            head.appendBytes(contentType.getBytes(MultipartHandler.UTF8));
+            head.appendBytes(CRLF);
+        }
+        head.appendBytes(CRLF);
+        return head;
+    }
+
+    /**
+     * Escape a quoted parameter value the way browsers do.
+     */
+    private static byte[] quote(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A").getBytes(MultipartHandler.UTF8);
+    }
+
+    /**
+     * Write the next parts until one must wait for its content or the write
+     * queue is full.
+     */
+    private void next() {
+        while (current == null && !failed && !done) {
+            if (out.writeQueueFull()) {
+                out.drainHandler(drainHandler);
+                return;
+            }
+            Part part = parts.poll();
+            if (part == null) {
+                if (ended) {
+                    done = true;
+                    write(new Buffer(close).getBuffer(partCount == 0 ? CRLF.length : 0, close.length));
+                    if (resultHandler != null) {
+                        resultHandler.handle(new AsyncResult<MultipartWriter>(this));
+                    }
+                }
+                return;
+            }
+            current = part;
+            write(part.head);
+            part.start();
+        }
+    }
+
+    private void write(Buffer buf) {
+        bytesWritten += buf.length();
+        out.writeBuffer(buf);
+    }
+
+    private void fail(Exception exc) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        if (resultHandler != null) {
+            resultHandler.handle(new AsyncResult<MultipartWriter>(exc));
+        }
+    }
+
+    /**
+     * A part whose content is in the head.
+     */
+    private class Part {
+        final Buffer head;
+
+        Part(Buffer head) {
+            this.head = head;
+        }
+
+        /**
+         * Write the content after the head. Set current to null when done.
+         */
+        void start() {
+            current = null;
+        }
+
+        void finish() {
+            current = null;
+            next();
+        }
+    }
+
+    private class StreamPart extends Part {
+        private final ReadStream content;
+        private final AsyncFile file;
+        private Buffer early; // Data received before the part was started
+        private boolean endedEarly;
+
+        StreamPart(Buffer head, final ReadStream content, AsyncFile file) {
+            super(head);
+            this.content = content;
+            this.file = file;
+            content.dataHandler(new Handler<Buffer>() {
+                @Override
+                public void handle(Buffer buf) {
+                    if (current != StreamPart.this) {
+                        if (early == null) {
+                            early = new Buffer();
+                        }
+                        early.appendBuffer(buf);
+                        return;
+                    }
+                    write(buf);
+                    if (out.writeQueueFull()) {
+                        content.pause();
+                        out.drainHandler(new Handler<Void>() {
+                            @Override
+                            public void handle(Void arg) {
+                                content.resume();
+                            }
+                        });
+                    }
+                }
+            });
+            content.endHandler(new Handler<Void>() {
+                @Override
+                public void handle(Void arg) {
+                    if (current != StreamPart.this) {
+                        endedEarly = true;
+                        return;
+                    }
+                    closeFile();
+                    finish();
+                }
+            });
+            content.exceptionHandler(new Handler<Exception>() {
+                @Override
+                public void handle(Exception exc) {
+                    closeFile();
+                    fail(exc);
+                }
+            });
+            content.pause();
+        }
+
+        @Override
+        void start() {
+            if (early != null) {
+                write(early);
+                early = null;
+            }
+            if (endedEarly) {
+                closeFile();
+                current = null;
+                return;
+            }
+            content.resume();
+        }
+
+        private void closeFile() {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private class PathPart extends Part {
+        private final FileSystem fileSystem;
+        private final String path;
+
+        PathPart(Buffer head, FileSystem fileSystem, String path) {
+            super(head);
+            this.fileSystem = fileSystem;
+            this.path = path;
+        }
+
+        @Override
+        void start() {
+            if (out instanceof NetSocket) {
+                ((NetSocket) out).sendFile(path);
+                current = null;
+                return;
+            }
+            fileSystem.open(path, null, true, false, false, new AsyncResultHandler<AsyncFile>() {
+                @Override
+                public void handle(AsyncResult<AsyncFile> result) {
+                    if (result.failed()) {
+                        fail(result.exception);
+                        return;
+                    }
+                    current = new StreamPart(null, result.result.getReadStream(), result.result);
+                    current.start();
+                }
+            });
+        }
+    }
+}
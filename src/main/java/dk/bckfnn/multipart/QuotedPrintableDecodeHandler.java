@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+/**
+ * An ReadStream that will decode quoted-printable input (RFC 2045) and pass
+ * the decoded binary to the ReadStream pass in the constructor.
+ * 
+ * Escapes and soft line breaks may be split between input buffers. Trailing
+ * whitespace on a line is removed. Each input buffer is decoded directly into
+ * the backing array of a single output buffer.
+ */
+public class QuotedPrintableDecodeHandler extends BaseReadStream {
+    final static int[] hex = new int[256];
+
+    static {
+        Arrays.fill(hex, -1);
+        for (int i = 0; i < 10; i++) {
+            hex['0' + i] = i;
+        }
+        for (int i = 0; i < 6; i++) {
+            hex['A' + i] = 10 + i;
+            hex['a' + i] = 10 + i;
+        }
+    }
+
+    enum State {
+        TEXT, // Normal text
+        EQ, // After a '='
+        HEX, // After a '=' and the first hex digit
+        SOFT_WS, // Whitespace after a '='
+        SOFT_CR, // CR of a soft line break
+    }
+
+    private State state = State.TEXT;
+    private int high; // The first hex digit of an escape, as read
+
+    // Whitespace that is only output if it is not at the end of a line.
+    private byte[] ws = new byte[16];
+    private int wsLength;
+
+    /**
+     * Constructor. Pass in the output ReadStream by calling input(ReadStream).
+     */
+    public QuotedPrintableDecodeHandler() {
+        super();
+    }
+
+    /**
+     * Constructor. Send the output the readStream.
+     * 
+     * @param readStream the output ReadStream.
+     */
+    public QuotedPrintableDecodeHandler(ReadStream readStream) {
+        super(readStream);
+    }
+
+    @Override
+    protected void handleData(Buffer buf) {
+        ChannelBuffer in = buf.getChannelBuffer();
+        int len = in.readableBytes();
+        byte[] src;
+        int i;
+        if (in.hasArray()) {
+            src = in.array();
+            i = in.arrayOffset() + in.readerIndex();
+        } else {
+            src = new byte[len];
+            in.getBytes(in.readerIndex(), src);
+            i = 0;
+        }
+        int end = i + len;
+
+        Buffer out = bufferPool.acquire(wsLength + len);
+        ChannelBuffer outBuf = out.getChannelBuffer();
+        byte[] dst = outBuf.array();
+        int start = outBuf.arrayOffset();
+        int o = start;
+
+        while (i < end) {
+            byte b = src[i++];
+            switch (state) {
+            case TEXT:
+                if (b == ' ' || b == '\t') {
+                    if (wsLength == ws.length) {
+                        ws = Arrays.copyOf(ws, ws.length * 2);
+                    }
+                    ws[wsLength++] = b;
+                    continue;
+                }
+                if (b != '\r' && b != '\n') {
+                    System.arraycopy(ws, 0, dst, o, wsLength);
+                    o += wsLength;
+                }
+                wsLength = 0;
+                if (b == '=') {
+                    state = State.EQ;
+                } else {
+                    dst[o++] = b;
+                }
+                break;
+            case EQ:
+                if (b == '\r') {
+                    state = State.SOFT_CR;
+                } else if (b == '\n') {
+                    state = State.TEXT;
+                } else if (b == ' ' || b == '\t') {
+                    state = State.SOFT_WS;
+                } else if (hex[b & 0xff] >= 0) {
+                    high = b & 0xff;
+                    state = State.HEX;
+                } else {
+                    illegal(out, "Illegal quoted-printable escape =" + (char) b);
+                    return;
+                }
+                break;
+            case HEX:
+                if (hex[b & 0xff] < 0) {
+                    illegal(out, "Illegal quoted-printable escape =" + (char) high + (char) b);
+                    return;
+                }
+                dst[o++] = (byte) (hex[high] << 4 | hex[b & 0xff]);
+                state = State.TEXT;
+                break;
+            case SOFT_WS:
+                if (b == '\r') {
+                    state = State.SOFT_CR;
+                } else if (b == '\n') {
+                    state = State.TEXT;
+                } else if (b != ' ' && b != '\t') {
+                    illegal(out, "Illegal quoted-printable soft line break");
+                    return;
+                }
+                break;
+            case SOFT_CR:
+                if (b != '\n') {
+                    illegal(out, "Illegal quoted-printable soft line break");
+                    return;
+                }
+                state = State.TEXT;
+                break;
+            }
+        }
+
+        if (o > start) {
+            outBuf.writerIndex(o - start);
+            super.handleData(out);
+        } else {
+            bufferPool.release(out);
+        }
+    }
+
+    /**
+     * Give the output back to the pool and report the illegal input.
+     */
+    private void illegal(Buffer out, String message) {
+        bufferPool.release(out);
+        handleException(new RuntimeException(message));
+    }
+
+    @Override
+    protected void handleEnd() {
+        if (state == State.EQ || state == State.HEX) {
+            handleException(new RuntimeException("Illegal trailing quoted-printable data"));
+            return;
+        }
+        super.handleEnd();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.ArrayDeque;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * A BufferPool with a free list per thread for each power of 2 size between
+ * 512 bytes and maxSize. Larger Buffers are not pooled.
+ * 
+ * A Buffer is released to the pool of the thread that calls release(), with
+ * vert.x that is normally the event loop that parsed the data. Each free list
+ * holds at most maxPerSize Buffers, the rest are left to the garbage
+ * collector. A released Buffer that has grown to a size that is not a power
+ * of 2 is dropped.
+ */
+public class ThreadLocalBufferPool implements BufferPool {
+    public final static int MIN_SIZE = 512;
+    public final static int DEFAULT_MAX_SIZE = 64 * 1024;
+    public final static int DEFAULT_MAX_PER_SIZE = 64;
+
+    private final int maxSize;
+    private final int maxPerSize;
+    private final ThreadLocal<ArrayDeque<Buffer>[]> pools = new ThreadLocal<ArrayDeque<Buffer>[]>() {
+        @Override
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        protected ArrayDeque<Buffer>[] initialValue() {
+            ArrayDeque<Buffer>[] p = new ArrayDeque[sizeClass(maxSize) + 1];
+            for (int i = 0; i < p.length; i++) {
+                p[i] = new ArrayDeque<>();
+            }
+            return p;
+        }
+    };
+
+    public ThreadLocalBufferPool() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_PER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize the largest Buffer that is pooled, a power of 2.
+     * @param maxPerSize the number of free Buffers kept for each size, per
+     * thread.
+     */
+    public ThreadLocalBufferPool(int maxSize, int maxPerSize) {
+        if (Integer.bitCount(maxSize) != 1 || maxSize < MIN_SIZE) {
+            throw new IllegalArgumentException("maxSize must be a power of 2 of at least " + MIN_SIZE);
+        }
+        this.maxSize = maxSize;
+        this.maxPerSize = maxPerSize;
+    }
+
+    @Override
+    public Buffer acquire(int size) {
+        if (size > maxSize) {
+            return new Buffer(size);
+        }
+        int sizeClass = sizeClass(size);
+        Buffer buf = pools.get()[sizeClass].pollFirst();
+        if (buf == null) {
+            return new Buffer(MIN_SIZE << sizeClass);
+        }
+        return buf;
+    }
+
+    @Override
+    public void release(Buffer buf) {
+        ChannelBuffer cb = buf.getChannelBuffer();
+        int capacity = cb.capacity();
+        if (capacity > maxSize || capacity < MIN_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        ArrayDeque<Buffer> pool = pools.get()[sizeClass(capacity)];
+        if (pool.size() < maxPerSize) {
+            cb.clear();
+            pool.addFirst(buf);
+        }
+    }
+
+    /**
+     * Return the index of the smallest power of 2 size that can hold size
+     * bytes.
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+}
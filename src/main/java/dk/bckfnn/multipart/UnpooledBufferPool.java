@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * A BufferPool that allocates a new Buffer every time and ignores release.
+ * This is the default.
+ */
+public class UnpooledBufferPool implements BufferPool {
+    public final static UnpooledBufferPool INSTANCE = new UnpooledBufferPool();
+
+    @Override
+    public Buffer acquire(int size) {
+        return new Buffer(size);
+    }
+
+    @Override
+    public void release(Buffer buf) {
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.Context;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.streams.ReadStream;
+
+/**
+ * A ReadStream that passes the data of the input ReadStream to the handlers
+ * on a worker Executor, so CPU heavy consumers don't block the event loop.
+ * 
+ * The events are delivered in order and one at a time, but not always on the
+ * same thread. Any Executor can be used, a thread pool or a virtual thread
+ * per task executor on JDK 21. When more than maxQueued bytes are waiting for
+ * the worker, the input is paused; it is resumed on the event loop when the
+ * worker has caught up to half of that.
+ * 
+ * The input must be used from the event loop only, so the constructor and
+ * handleData() must be called there. pause() and resume() may be called from
+ * the handlers on the worker.
+ */
+public class WorkerReadStream extends BaseReadStream {
+    public final static int DEFAULT_MAX_QUEUED = 256 * 1024;
+
+    private final static Object END = new Object();
+
+    private final Executor worker;
+    private final Executor eventLoop;
+    private final long maxQueued;
+
+    // Buffers, exceptions and END waiting for the worker.
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    // A drain task is running or submitted to the worker.
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+    private volatile boolean paused;
+    private volatile boolean inputPaused; // Only changed on the event loop
+    private volatile boolean failed; // A handler threw, drop the rest
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeScheduled.set(false);
+            if (inputPaused && queued.get() <= maxQueued / 2) {
+                inputPaused = false;
+                input.resume();
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     * 
+     * @param input the ReadStream to read from.
+     * @param worker the Executor the handlers are called on.
+     * @param eventLoop an Executor that runs tasks on the event loop of the
+     * input, see eventLoop(Vertx).
+     * @param maxQueued the number of bytes that can wait for the worker before
+     * the input is paused.
+     */
+    public WorkerReadStream(ReadStream input, Executor worker, Executor eventLoop, long maxQueued) {
+        super(input);
+        this.worker = worker;
+        this.eventLoop = eventLoop;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Return an Executor that runs tasks on the event loop of the calling
+     * verticle. Must be called on the event loop.
+     */
+    public static Executor eventLoop(Vertx vertx) {
+        final Context context = ((VertxInternal) vertx).getContext();
+        if (context == null) {
+            throw new IllegalStateException("Not on an event loop");
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                context.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Return the number of bytes waiting for the worker.
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    @Override
+    protected void handleData(Buffer buf) {
+        if (failed) {
+            release(buf);
+            return;
+        }
+        if (queued.addAndGet(buf.length()) > maxQueued && !inputPaused) {
+            inputPaused = true;
+            input.pause();
+            // The worker may have caught up before it could see inputPaused.
+            if (queued.get() <= maxQueued / 2) {
+                inputPaused = false;
+                input.resume();
+            }
+        }
+        offer(buf);
+    }
+
+    @Override
+    protected void handleEnd() {
+        offer(END);
+    }
+
+    @Override
+    protected void handleException(Exception exc) {
+        exception = true;
+        offer(exc);
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        schedule();
+    }
+
+    private void offer(Object event) {
+        queue.add(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!paused && !queue.isEmpty() && draining.compareAndSet(false, true)) {
+            worker.execute(drainTask);
+        }
+    }
+
+    /**
+     * Deliver the queued events on the worker. Only one drain runs at a time.
+     */
+    private void drain() {
+        while (true) {
+            Object event;
+            while (!paused && (event = queue.poll()) != null) {
+                deliver(event);
+            }
+            draining.set(false);
+            // Events may have been offered after the last poll.
+            if (paused || queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(Object event) {
+        if (event instanceof Buffer) {
+            Buffer buf = (Buffer) event;
+            long left = queued.addAndGet(-buf.length());
+            if (failed) {
+                release(buf);
+            } else {
+                try {
+                    super.handleData(buf);
+                } catch (RuntimeException exc) {
+                    fail(exc);
+                }
+            }
+            if (inputPaused && left <= maxQueued / 2 && resumeScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(resumeTask);
+            }
+        } else if (failed) {
+            return;
+        } else if (event == END) {
+            try {
+                super.handleEnd();
+            } catch (RuntimeException exc) {
+                fail(exc);
+            }
+        } else {
+            failed = true;
+            super.handleException((Exception) event);
+        }
+    }
+
+    /**
+     * A handler threw. The rest of the data is dropped so the input is not
+     * left paused.
+     */
+    private void fail(RuntimeException exc) {
+        failed = true;
+        super.handleException(exc);
+    }
+}
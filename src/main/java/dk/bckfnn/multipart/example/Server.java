@@ -1,53 +1,71 @@
 package dk.bckfnn.multipart.example;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 
 import org.vertx.java.core.Handler;
-import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpServer;
 import org.vertx.java.core.http.HttpServerRequest;
-import org.vertx.java.core.streams.ReadStream;
+import org.vertx.java.core.logging.Logger;
 import org.vertx.java.deploy.Verticle;
 
-import dk.bckfnn.multipart.BaseReadStream;
+import dk.bckfnn.multipart.LimitExceededException;
 import dk.bckfnn.multipart.MultipartHandler;
 import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
 
 public class Server extends Verticle {
     @Override
     public void start() throws Exception {
-        //final Logger log = container.getLogger();
+        final Logger log = container.getLogger();
 
         HttpServer server = vertx.createHttpServer();
 
         server.requestHandler(new Handler<HttpServerRequest>() {
             public void handle(final HttpServerRequest request) {
-                System.out.println("A request has arrived on the server! " + request.path);
+                // Logging is synchronous, so only build and write the
+                // message when the level is enabled.
+                if (log.isDebugEnabled()) {
+                    log.debug("request method=" + request.method + " path=" + request.path);
+                }
                 if (request.path.equals("/form.html")) {
                     request.response.sendFile("form.html");
                     return;
                 }
                 if (request.path.equals("/submit")) {
-                    MultipartHandler multipartHandler = new MultipartHandler(request);
+                    // The digests are returned in the response instead of
+                    // being printed for every field.
+                    final StringBuilder result = new StringBuilder();
+                    MultipartHandler multipartHandler = new MultipartHandler(request, new MultipartOptions().digests("MD5", "SHA-256"));
                     multipartHandler.fieldHandler(new Handler<FieldInfo>() {
                         @Override
                         public void handle(final FieldInfo field) {
-                            ReadStream md5 = new Md5Handler(field);
-                            md5.dataHandler(new Handler<Buffer>() {
+                            field.endHandler(new Handler<Void>() {
                                 @Override
-                                public void handle(Buffer buf) {
-                                    System.out.println("md5:" + field.getName() + " " + buf);
+                                public void handle(Void arg) {
+                                    String md5 = hex(field.getDigest("MD5"));
+                                    String sha256 = hex(field.getDigest("SHA-256"));
+                                    result.append(field.getName()).append(' ').append(md5).append(' ').append(sha256).append('\n');
+                                    if (log.isDebugEnabled()) {
+                                        log.debug("field name=" + field.getName() + " md5=" + md5 + " sha256=" + sha256);
+                                    }
                                 }
                             });
                         }
                     });
+                    multipartHandler.exceptionHandler(new Handler<Exception>() {
+                        @Override
+                        public void handle(Exception exc) {
+                            // The rest of the request is not read, so close the connection.
+                            request.response.statusCode = exc instanceof LimitExceededException ? 413 : 400;
+                            request.response.putHeader("Connection", "close");
+                            request.response.end(exc.getMessage());
+                        }
+                    });
                     multipartHandler.endHandler(new Handler<Void>() {
                         @Override
                         public void handle(Void arg0) {
-                            System.out.println("form processed");
-                            request.response.end("form processed");
+                            request.response.putHeader("Content-Type", "text/plain");
+                            request.response.end(result.toString());
                         }
                     });
                     return;
@@ -64,26 +82,11 @@ public class Server extends Verticle {
         server.listen(8080, "localhost");
     }
 
-    public static class Md5Handler extends BaseReadStream {
-        MessageDigest m;
-
-        Md5Handler(ReadStream input) {
-            super(input);
-            try {
-                m = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException exc) {
-                throw new RuntimeException(exc);
-            }
-        }
-
-        @Override
-        protected void handleData(Buffer buf) {
-            m.update(buf.getBytes());
-        }
-
-        protected void handleEnd() {
-            super.handleData(new Buffer(m.digest()));
-            super.handleEnd();
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
         }
+        return sb.toString();
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler.Delimiter;
+import dk.bckfnn.multipart.MultipartHandler.RecordParser;
+
+/**
+ * In the dk.bckfnn.multipart package to read the comparison count of the
+ * RecordParser.
+ */
+public class RecordParserTest {
+
+    @Test
+    public void testRepetitiveInputIsLinear() {
+        // Horspool alone is quadratic when the input repeats the delimiter.
+        byte[] boundary = new byte[70];
+        Arrays.fill(boundary, (byte) 'a');
+        Delimiter delim = new Delimiter(("\r\n--" + new String(boundary)).getBytes());
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'a');
+        int chunks = 64;
+
+        RecordParser parser = new RecordParser();
+        long received = 0;
+        for (int i = 0; i < chunks; i++) {
+            parser.add(new Buffer(chunk));
+            ChannelBuffer slice;
+            while ((slice = parser.parseSlice(delim, 8192)) != null) {
+                received += slice.readableBytes();
+            }
+        }
+        parser.add(new Buffer(delim.bytes));
+        ChannelBuffer slice;
+        do {
+            slice = parser.parseSlice(delim, 8192);
+            received += slice.readableBytes();
+        } while (!parser.delimiterFound);
+
+        long length = (long) chunks * chunk.length;
+        Assert.assertEquals(length, received);
+        // Each byte is compared at most about twice.
+        Assert.assertTrue(parser.comparisons + " comparisons", parser.comparisons <= 3 * length);
+    }
+}
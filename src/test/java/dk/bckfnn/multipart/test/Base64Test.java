@@ -24,6 +24,7 @@ import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 
 import dk.bckfnn.multipart.Base64DecodeHandler;
+import dk.bckfnn.multipart.BufferPool;
 
 public class Base64Test {
 
@@ -51,6 +52,87 @@ public class Base64Test {
         test(body, new Buffer(""), new RuntimeException("Illegal base64 char %"));
     }
 
+    @Test
+    public void testWhitespaceInQuad() {
+        String[] body = {
+                "VGhlIHF1aW",
+                "NrIGJyb3duIGZveCBqdW1wcyBvdmVyIHRoZSBsYXp5IGRvZy4",
+                "=",
+        };
+        test(body, new Buffer("The quick brown fox jumps over the lazy dog."), null);
+    }
+
+    @Test
+    public void testPadding() {
+        test(new String[] { "YQ==" }, new Buffer("a"), null);
+        test(new String[] { "YWI=" }, new Buffer("ab"), null);
+        test(new String[] { "YWJj" }, new Buffer("abc"), null);
+        test(new String[] { "YW" }, new Buffer(""), new RuntimeException("Illegal trailing base64 data"));
+    }
+
+    @Test
+    public void testSplit() {
+        String encoded = "VGhlIHF1aWNrIGJyb3duIGZveCBqdW1wcyBv\r\ndmVyIHRoZSBsYXp5IGRvZy4=\r\n";
+        for (int i = 0; i <= encoded.length(); i++) {
+            final Buffer out = new Buffer();
+            TestReadStream istr = new TestReadStream();
+            Base64DecodeHandler b64Handler = new Base64DecodeHandler(istr);
+            b64Handler.dataHandler(new Handler<Buffer>() {
+                public void handle(Buffer buf) {
+                    out.appendBuffer(buf);
+                }
+            });
+            istr.data(new Buffer(encoded.substring(0, i)));
+            istr.data(new Buffer(encoded.substring(i)));
+            istr.end();
+            Assert.assertEquals(new Buffer("The quick brown fox jumps over the lazy dog."), out);
+        }
+    }
+
+    @Test
+    public void testReaderIndex() {
+        Buffer in = new Buffer("XXXXYWJj");
+        in.getChannelBuffer().readerIndex(4);
+        final Buffer out = new Buffer();
+        TestReadStream istr = new TestReadStream();
+        Base64DecodeHandler b64Handler = new Base64DecodeHandler(istr);
+        b64Handler.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        istr.data(in);
+        istr.end();
+        Assert.assertEquals(new Buffer("abc"), out);
+    }
+
+    @Test
+    public void testIllegalReleasesBuffer() {
+        final List<Buffer> outstanding = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        Base64DecodeHandler b64Handler = new Base64DecodeHandler(istr);
+        b64Handler.bufferPool(new BufferPool() {
+            @Override
+            public Buffer acquire(int size) {
+                Buffer buf = new Buffer(size);
+                outstanding.add(buf);
+                return buf;
+            }
+
+            @Override
+            public void release(Buffer buf) {
+                Assert.assertTrue(outstanding.remove(buf));
+            }
+        });
+        b64Handler.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+            }
+        });
+        istr.data(new Buffer("YWJj%"));
+        Assert.assertEquals(0, outstanding.size());
+    }
+
     public void test(String[] body, Buffer expected, Exception exc) {
         final Buffer out = new Buffer();
         final List<Exception> exceptions = new ArrayList<>();
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+import dk.bckfnn.multipart.ThreadLocalBufferPool;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        ThreadLocalBufferPool pool = new ThreadLocalBufferPool(4096, 2);
+        Buffer a = pool.acquire(100);
+        Assert.assertEquals(512, a.getChannelBuffer().capacity());
+        Assert.assertEquals(0, a.length());
+        a.appendString("abc");
+        pool.release(a);
+
+        Buffer b = pool.acquire(512);
+        Assert.assertSame(a, b);
+        Assert.assertEquals(0, b.length());
+        Assert.assertNotSame(a, pool.acquire(100));
+
+        Assert.assertEquals(1024, pool.acquire(513).getChannelBuffer().capacity());
+        Assert.assertEquals(4096, pool.acquire(4096).getChannelBuffer().capacity());
+
+        // Too large to be pooled.
+        Buffer c = pool.acquire(5000);
+        Assert.assertEquals(5000, c.getChannelBuffer().capacity());
+        pool.release(c);
+        Assert.assertNotSame(c, pool.acquire(5000));
+    }
+
+    @Test
+    public void testBounded() {
+        ThreadLocalBufferPool pool = new ThreadLocalBufferPool(4096, 2);
+        Buffer a = pool.acquire(1000);
+        Buffer b = pool.acquire(1000);
+        Buffer c = pool.acquire(1000);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        Assert.assertSame(b, pool.acquire(1000));
+        Assert.assertSame(a, pool.acquire(1000));
+        Assert.assertNotSame(c, pool.acquire(1000));
+    }
+
+    @Test
+    public void testMultipartRelease() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("line " + i + "\r\n");
+        }
+        final String content = sb.toString();
+        Buffer body = new Buffer();
+        body.appendString("--boundary\r\n\r\n");
+        body.appendString(content);
+        body.appendString("\r\n--boundary\r\ncontent-encoding: gzip\r\n\r\n");
+        body.appendBytes(InflateTest.gzip(content));
+        body.appendString("\r\n--boundary--\r\n");
+
+        final Map<Buffer, Boolean> seen = new IdentityHashMap<>();
+        final StringBuilder out = new StringBuilder();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr,
+                new MultipartOptions().bodyChunkSize(1000).inflate(true).bufferPool(new ThreadLocalBufferPool()));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        seen.put(buf, true);
+                        out.append(buf.toString());
+                        field.release(buf);
+                    }
+                });
+            }
+        });
+        for (int i = 0; i < body.length(); i += 777) {
+            istr.data(body.getBuffer(i, Math.min(i + 777, body.length())));
+        }
+        istr.end();
+
+        Assert.assertEquals(content + content, out.toString());
+        // The released buffers are reused, a few are enough for the whole body.
+        Assert.assertTrue(seen.size() < 5);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.DigestReadStream;
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+public class DigestReadStreamTest {
+    static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    static final String SHA256_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    static final String CRC32_ABC = "352441c2";
+
+    @Test
+    public void testDigests() {
+        final Buffer out = new Buffer();
+        TestReadStream istr = new TestReadStream();
+        DigestReadStream digest = new DigestReadStream(istr, "MD5", "SHA-256", "CRC32");
+        digest.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        istr.data(new Buffer("a"));
+        Assert.assertNull(digest.getDigest("MD5"));
+        istr.data(new Buffer("bc"));
+        istr.end();
+
+        Assert.assertEquals(new Buffer("abc"), out);
+        Assert.assertEquals(MD5_ABC, hex(digest.getDigest("MD5")));
+        Assert.assertEquals(SHA256_ABC, hex(digest.getDigest("sha-256")));
+        Assert.assertEquals(CRC32_ABC, hex(digest.getDigest("CRC32")));
+        Assert.assertNull(digest.getDigest("SHA-1"));
+        Assert.assertEquals("[MD5, SHA-256, CRC32]", digest.getDigests().keySet().toString());
+    }
+
+    @Test
+    public void testSlice() {
+        TestReadStream istr = new TestReadStream();
+        DigestReadStream digest = new DigestReadStream(istr, "MD5", "CRC32");
+        istr.process(new Buffer("xxabcxx").getBuffer(2, 5));
+        Assert.assertEquals(MD5_ABC, hex(digest.getDigest("MD5")));
+        Assert.assertEquals(CRC32_ABC, hex(digest.getDigest("CRC32")));
+    }
+
+    @Test
+    public void testCrc32c() {
+        DigestReadStream digest;
+        try {
+            digest = new DigestReadStream("CRC32C");
+        } catch (IllegalArgumentException exc) {
+            Assume.assumeNoException(exc);
+            return;
+        }
+        TestReadStream istr = new TestReadStream();
+        digest.input(istr);
+        istr.process(new Buffer("abc"));
+        Assert.assertEquals("364b3fb7", hex(digest.getDigest("CRC32C")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        new DigestReadStream("NO-SUCH-DIGEST");
+    }
+
+    @Test
+    public void testPartDigests() {
+        Buffer body = new Buffer();
+        body.appendString("--boundary\r\ncontent-disposition: form-data; name=\"plain\"\r\n\r\n");
+        body.appendString("abc");
+        body.appendString("\r\n--boundary\r\ncontent-disposition: form-data; name=\"encoded\"\r\n");
+        body.appendString("content-transfer-encoding: base64\r\n\r\n");
+        body.appendString("YWJj");
+        body.appendString("\r\n--boundary\r\ncontent-disposition: form-data; name=\"empty\"\r\n\r\n");
+        body.appendString("\r\n--boundary--\r\n");
+
+        final List<String> digests = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().digests("MD5", "CRC32"));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            public void handle(final FieldInfo field) {
+                Assert.assertNull(field.getDigest("MD5"));
+                field.endHandler(new Handler<Void>() {
+                    public void handle(Void arg) {
+                        digests.add(field.getName() + " " + hex(field.getDigest("MD5")) + " " + hex(field.getDigest("CRC32")));
+                    }
+                });
+            }
+        });
+        for (int i = 0; i < body.length(); i += 7) {
+            istr.data(body.getBuffer(i, Math.min(i + 7, body.length())));
+        }
+        istr.end();
+
+        Assert.assertEquals(3, digests.size());
+        Assert.assertEquals("plain " + MD5_ABC + " " + CRC32_ABC, digests.get(0));
+        Assert.assertEquals("encoded " + MD5_ABC + " " + CRC32_ABC, digests.get(1));
+        Assert.assertEquals("empty d41d8cd98f00b204e9800998ecf8427e 00000000", digests.get(2));
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.FileUploadSink;
+import dk.bckfnn.multipart.LimitExceededException;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+public class FileUploadSinkTest {
+
+    @Test
+    public void testUpload() throws Exception {
+        String content = TestUpload.content(10000);
+        Buffer body = new Buffer();
+        TestUpload.part(body, "file", "a.txt", content);
+        TestUpload.end(body);
+
+        final TestUpload<FileUploadSink> upload = new TestUpload<>(1);
+        upload.parse(body, new MultipartOptions(), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new FileUploadSink(upload.vertx, field, TestUpload.tempFile(), 4096).resultHandler(upload);
+            }
+        });
+        upload.await();
+        upload.stop();
+
+        Assert.assertEquals(0, upload.exceptions.size());
+        Assert.assertEquals(1, upload.results.size());
+        File file = new File(upload.results.get(0).getPath());
+        Assert.assertEquals(content.length(), upload.results.get(0).getBytesWritten());
+        Assert.assertEquals(content, new String(Files.readAllBytes(file.toPath())));
+        file.delete();
+    }
+
+    @Test
+    public void testAbortedByLimit() throws Exception {
+        Buffer body = new Buffer();
+        TestUpload.part(body, "file", "a.txt", TestUpload.content(10000));
+        TestUpload.end(body);
+
+        final String path = TestUpload.tempFile();
+        final TestUpload<FileUploadSink> upload = new TestUpload<>(1);
+        upload.parse(body, new MultipartOptions().maxBodySize(20000), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new FileUploadSink(upload.vertx, field, path, 4096).resultHandler(upload);
+            }
+        });
+        upload.await();
+        // The file is deleted after the resultHandler is called.
+        File file = new File(path);
+        for (int i = 0; i < 100 && file.exists(); i++) {
+            Thread.sleep(50);
+        }
+        upload.stop();
+
+        Assert.assertEquals(1, upload.exceptions.size());
+        Assert.assertEquals(new LimitExceededException("Body too large").toString(), upload.exceptions.get(0).toString());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testTwoParts() throws Exception {
+        List<String> contents = new ArrayList<>(Arrays.asList(TestUpload.content(10000), TestUpload.content(5000)));
+        Buffer body = new Buffer();
+        TestUpload.part(body, "file1", "a.txt", contents.get(0));
+        TestUpload.part(body, "file2", "b.txt", contents.get(1));
+        TestUpload.end(body);
+
+        final TestUpload<FileUploadSink> upload = new TestUpload<>(2);
+        upload.parse(body, new MultipartOptions(), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new FileUploadSink(upload.vertx, field, TestUpload.tempFile(), 4096).resultHandler(upload);
+            }
+        });
+        upload.await();
+        upload.awaitEnd();
+        upload.stop();
+
+        Assert.assertEquals(0, upload.exceptions.size());
+        Assert.assertEquals(2, upload.results.size());
+        for (FileUploadSink sink : upload.results) {
+            File file = new File(sink.getPath());
+            Assert.assertTrue(contents.remove(new String(Files.readAllBytes(file.toPath()))));
+            file.delete();
+        }
+    }
+}
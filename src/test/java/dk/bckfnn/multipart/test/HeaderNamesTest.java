@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.bckfnn.multipart.HeaderNames;
+
+public class HeaderNamesTest {
+
+    @Test
+    public void testKnown() {
+        HeaderNames names = new HeaderNames();
+        String a = get(names, "Content-Disposition");
+        Assert.assertEquals("content-disposition", a);
+        Assert.assertSame(a, get(new HeaderNames(), "CONTENT-DISPOSITION"));
+        Assert.assertSame(get(names, "filename"), get(names, "FileName"));
+        Assert.assertEquals("content-description", get(names, "Content-Description"));
+        Assert.assertNull(HeaderNames.known("content-dispositioN2".getBytes(), 0, 20));
+        Assert.assertNull(HeaderNames.known("x-custom".getBytes(), 0, 8));
+        Assert.assertEquals("", get(names, ""));
+    }
+
+    @Test
+    public void testCache() {
+        HeaderNames names = new HeaderNames(4);
+        String a = get(names, "X-Custom");
+        Assert.assertEquals("x-custom", a);
+        Assert.assertSame(a, get(names, "x-CUSTOM"));
+        Assert.assertNotSame(a, get(new HeaderNames(4), "x-custom"));
+
+        // The cache is bounded, names may be replaced but are always correct.
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("x-field-" + i, get(names, "X-Field-" + i));
+        }
+        Assert.assertEquals("x-custom", get(names, "X-Custom"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheSize() {
+        new HeaderNames(10);
+    }
+
+    private static String get(HeaderNames names, String s) {
+        byte[] b = ("  " + s + " ").getBytes();
+        return names.get(b, 2, b.length - 3);
+    }
+}
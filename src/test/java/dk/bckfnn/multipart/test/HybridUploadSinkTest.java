@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.BufferPool;
+import dk.bckfnn.multipart.HybridUploadSink;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+public class HybridUploadSinkTest {
+
+    @Test
+    public void testMemoryAndFile() throws Exception {
+        String small = TestUpload.content(10);
+        String large = TestUpload.content(10000);
+        Buffer body = new Buffer();
+        TestUpload.part(body, "small", "small.txt", small);
+        TestUpload.part(body, "large", "large.txt", large);
+        TestUpload.end(body);
+
+        final TestUpload<HybridUploadSink> upload = new TestUpload<>(2);
+        upload.parse(body, new MultipartOptions(), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new HybridUploadSink(upload.vertx, field, 4096).resultHandler(upload);
+            }
+        });
+        upload.await();
+        upload.stop();
+
+        Assert.assertEquals(0, upload.exceptions.size());
+        Assert.assertEquals(2, upload.results.size());
+
+        HybridUploadSink memory = upload.results.get(0);
+        Assert.assertTrue(memory.isInMemory());
+        Assert.assertNull(memory.getPath());
+        Assert.assertEquals(small, memory.getBuffer().toString());
+        Assert.assertEquals(small.length(), memory.getSize());
+
+        HybridUploadSink disk = upload.results.get(1);
+        Assert.assertFalse(disk.isInMemory());
+        Assert.assertNull(disk.getBuffer());
+        File file = new File(disk.getPath());
+        Assert.assertEquals(large.length(), disk.getSize());
+        Assert.assertEquals(large, new String(Files.readAllBytes(file.toPath())));
+        file.delete();
+    }
+
+    @Test
+    public void testPooledBuffer() throws Exception {
+        String medium = TestUpload.content(1000);
+        String large = TestUpload.content(10000);
+        Buffer body = new Buffer();
+        TestUpload.part(body, "medium", "medium.txt", medium);
+        TestUpload.part(body, "large", "large.txt", large);
+        TestUpload.end(body);
+
+        final Set<Buffer> outstanding = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Buffer, Boolean>()));
+        BufferPool pool = new BufferPool() {
+            @Override
+            public Buffer acquire(int size) {
+                Buffer buf = new Buffer(size);
+                outstanding.add(buf);
+                return buf;
+            }
+
+            @Override
+            public void release(Buffer buf) {
+                Assert.assertTrue(outstanding.remove(buf));
+            }
+        };
+
+        final TestUpload<HybridUploadSink> upload = new TestUpload<>(2);
+        upload.parse(body, new MultipartOptions().bufferPool(pool), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new HybridUploadSink(upload.vertx, field).resultHandler(upload);
+            }
+        });
+        upload.await();
+        upload.stop();
+
+        Assert.assertEquals(0, upload.exceptions.size());
+        Assert.assertEquals(2, upload.results.size());
+
+        // Only the staging buffer of the part kept in memory is not released.
+        HybridUploadSink memory = upload.results.get(0);
+        Assert.assertTrue(memory.isInMemory());
+        Assert.assertEquals(medium, memory.getBuffer().toString());
+        Assert.assertEquals(1, outstanding.size());
+        Assert.assertTrue(outstanding.contains(memory.getBuffer()));
+
+        HybridUploadSink disk = upload.results.get(1);
+        Assert.assertFalse(disk.isInMemory());
+        Assert.assertEquals(large, new String(Files.readAllBytes(new File(disk.getPath()).toPath())));
+        new File(disk.getPath()).delete();
+    }
+
+    @Test
+    public void testFileBeforeMemory() throws Exception {
+        // About 586Kb. After the spill the part is parsed in 100000 byte
+        // slices, the first batch is written on the third and the second
+        // batch is full on the last slice, while the first write is still
+        // outstanding. The part is paused when it ends.
+        String large = TestUpload.content(49760);
+        String small = TestUpload.content(10);
+        Buffer body = new Buffer();
+        TestUpload.part(body, "large", "large.txt", large);
+        TestUpload.part(body, "small", "small.txt", small);
+        TestUpload.end(body);
+
+        final TestUpload<HybridUploadSink> upload = new TestUpload<>(2);
+        upload.parse(body, new MultipartOptions().bodyChunkSize(100000), new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                new HybridUploadSink(upload.vertx, field, 4096).resultHandler(upload);
+            }
+        });
+        upload.await();
+        upload.awaitEnd();
+        upload.stop();
+
+        Assert.assertEquals(0, upload.exceptions.size());
+        Assert.assertEquals(2, upload.results.size());
+        for (HybridUploadSink sink : upload.results) {
+            if (sink.isInMemory()) {
+                Assert.assertEquals(small, sink.getBuffer().toString());
+            } else {
+                File file = new File(sink.getPath());
+                Assert.assertEquals(large, new String(Files.readAllBytes(file.toPath())));
+                file.delete();
+            }
+        }
+        Assert.assertTrue(upload.results.get(0).isInMemory() != upload.results.get(1).isInMemory());
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.InflateReadStream;
+import dk.bckfnn.multipart.InflateReadStream.Format;
+import dk.bckfnn.multipart.LimitExceededException;
+
+public class InflateTest {
+    static final String TEXT = "The quick brown fox jumps over the lazy dog. caf\u00e9 ";
+
+    @Test
+    public void testGzip() {
+        test(Format.GZIP, gzip(TEXT), new Buffer(TEXT), null);
+    }
+
+    @Test
+    public void testDeflate() {
+        test(Format.DEFLATE, deflate(TEXT), new Buffer(TEXT), null);
+    }
+
+    @Test
+    public void testSplit() {
+        byte[] data = gzip(TEXT + TEXT);
+        for (int i = 0; i <= data.length; i++) {
+            final Buffer out = new Buffer();
+            TestReadStream istr = new TestReadStream();
+            InflateReadStream inflate = new InflateReadStream(istr, Format.GZIP, 100);
+            inflate.dataHandler(new Handler<Buffer>() {
+                public void handle(Buffer buf) {
+                    out.appendBuffer(buf);
+                }
+            });
+            istr.data(new Buffer(data).getBuffer(0, i));
+            istr.data(new Buffer(data).getBuffer(i, data.length));
+            istr.end();
+            Assert.assertEquals(new Buffer(TEXT + TEXT), out);
+        }
+    }
+
+    @Test
+    public void testReaderIndex() {
+        Buffer in = new Buffer("XXXX").appendBytes(gzip(TEXT));
+        in.getChannelBuffer().readerIndex(4);
+        final Buffer out = new Buffer();
+        TestReadStream istr = new TestReadStream();
+        InflateReadStream inflate = new InflateReadStream(istr, Format.GZIP, 100);
+        inflate.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        istr.data(in);
+        istr.end();
+        Assert.assertEquals(new Buffer(TEXT), out);
+    }
+
+    @Test
+    public void testMultipleMembers() {
+        Buffer data = new Buffer(gzip("first ")).appendBytes(gzip("second"));
+        test(Format.GZIP, data.getBytes(), new Buffer("first second"), null);
+    }
+
+    @Test
+    public void testCorruptCrc() {
+        byte[] data = gzip(TEXT);
+        data[data.length - 8] ^= 1;
+        test(Format.GZIP, data, new Buffer(TEXT), new RuntimeException("Corrupt gzip data"));
+    }
+
+    @Test
+    public void testNotGzip() {
+        test(Format.GZIP, deflate(TEXT), new Buffer(), new RuntimeException("Not in gzip format"));
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] data = gzip(TEXT);
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        test(Format.GZIP, truncated, new Buffer(TEXT), new RuntimeException("Truncated compressed data"));
+    }
+
+    @Test
+    public void testRatio() {
+        final long[] received = new long[1];
+        final List<Exception> exceptions = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        InflateReadStream inflate = new InflateReadStream(istr, Format.GZIP, 10);
+        inflate.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                received[0] += buf.length();
+            }
+        });
+        inflate.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                exceptions.add(exc);
+            }
+        });
+        istr.process(gzip(new byte[16 * 1024 * 1024]));
+
+        Assert.assertEquals(1, exceptions.size());
+        Assert.assertEquals(new LimitExceededException("Decompression ratio exceeded").toString(), exceptions.get(0).toString());
+        Assert.assertTrue(received[0] < 1024 * 1024);
+    }
+
+    @Test
+    public void testPause() {
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Object> events = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        final InflateReadStream inflate = new InflateReadStream(istr, Format.GZIP, 1000);
+        inflate.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                sizes.add(buf.length());
+                inflate.pause();
+            }
+        });
+        inflate.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.process(gzip(new byte[200 * 1024]));
+
+        Assert.assertEquals(1, sizes.size());
+        Assert.assertEquals(0, events.size());
+        for (int i = 0; i < 4; i++) {
+            inflate.resume();
+        }
+        Assert.assertEquals("[65536, 65536, 65536, 8192]", sizes.toString());
+        Assert.assertEquals("[success]", events.toString());
+    }
+
+    public void test(Format format, byte[] data, Buffer expected, Exception exc) {
+        final Buffer out = new Buffer();
+        final List<Exception> exceptions = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        InflateReadStream inflate = new InflateReadStream(istr, format, 100);
+        inflate.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        inflate.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                exceptions.add(exc);
+            }
+        });
+
+        istr.process(data);
+
+        Assert.assertEquals(expected, out);
+        if (exc != null) {
+            Assert.assertEquals(1, exceptions.size());
+            Assert.assertEquals(exc.toString(), exceptions.get(0).toString());
+        } else {
+            Assert.assertEquals(0, exceptions.size());
+        }
+    }
+
+    static byte[] gzip(String s) {
+        return gzip(new Buffer(s).getBytes());
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            compress(new GZIPOutputStream(bos), data);
+        } catch (IOException exc) {
+            throw new RuntimeException(exc);
+        }
+        return bos.toByteArray();
+    }
+
+    static byte[] deflate(String s) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            compress(new DeflaterOutputStream(bos), new Buffer(s).getBytes());
+        } catch (IOException exc) {
+            throw new RuntimeException(exc);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void compress(OutputStream os, byte[] data) throws IOException {
+        os.write(data);
+        os.close();
+    }
+}
@@ -15,16 +15,30 @@
  */
 package dk.bckfnn.multipart.test;
 
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Assert;
 import org.junit.Test;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 
+import dk.bckfnn.multipart.CountingMultipartMetrics;
+import dk.bckfnn.multipart.LimitExceededException;
 import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartOptions;
+import dk.bckfnn.multipart.MultipartProgress;
+import dk.bckfnn.multipart.MultipartHandler.Delimiter;
 import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartHandler.RawHeaders;
+import dk.bckfnn.multipart.MultipartHandler.State;
 import dk.bckfnn.multipart.MultipartHandler.RecordParser;
 
 public class MultiPartTest {
@@ -68,6 +82,321 @@ public class MultiPartTest {
 
     }
 
+    @Test
+    public void testRecordParserCompacts() {
+        RecordParser p = new RecordParser();
+        Buffer chunk = new Buffer(new byte[8192]);
+        for (int i = 0; i < 1000; i++) {
+            p.add(chunk);
+            while (p.parseDelimited("--boundary".getBytes(), 4096) != null) {
+            }
+            Assert.assertTrue(p.buffered() < 4096 + "--boundary".length());
+        }
+    }
+
+    @Test
+    public void testRecordParserRandomSplits() {
+        // compare against String.indexOf for random input split into random chunks.
+        Random rnd = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            String delim = randomString(rnd, 1 + rnd.nextInt(6), "ab");
+            String input = randomString(rnd, rnd.nextInt(40), "abc");
+
+            List<String> expected = new ArrayList<>();
+            int s = 0;
+            for (int i; (i = input.indexOf(delim, s)) >= 0; s = i + delim.length()) {
+                expected.add(input.substring(s, i));
+            }
+
+            RecordParser p = new RecordParser();
+            Delimiter d = new Delimiter(delim.getBytes());
+            List<String> records = new ArrayList<>();
+            StringBuilder record = new StringBuilder();
+            for (int i = 0; i < input.length();) {
+                int e = Math.min(input.length(), i + 1 + rnd.nextInt(5));
+                p.add(new Buffer(input.substring(i, e)));
+                i = e;
+                Buffer b;
+                while ((b = p.parseDelimited(d, 1 + rnd.nextInt(8))) != null) {
+                    record.append(b.toString());
+                    if (p.delimiterFound) {
+                        records.add(record.toString());
+                        record.setLength(0);
+                    }
+                }
+            }
+            Assert.assertEquals(delim + " in " + input, expected, records);
+        }
+    }
+
+    @Test
+    public void testRepetitiveBoundary() {
+        // The body repeats the boundary, see RecordParserTest for the bound
+        // on the work done.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            sb.append('a');
+        }
+        String boundary = sb.toString();
+        Buffer head = new Buffer("--" + boundary + "\r\ncontent-disposition: form-data; name=\"a\"\r\n\r\n");
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'a');
+        int chunks = 256;
+
+        final long[] received = new long[1];
+        final List<Object> events = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler handler = new MultipartHandler(boundary.getBytes(), istr, new MultipartOptions());
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        for (int i = 0; i < buf.length(); i++) {
+                            if (buf.getByte(i) != 'a') {
+                                throw new AssertionError("unexpected byte at " + (received[0] + i));
+                            }
+                        }
+                        received[0] += buf.length();
+                    }
+                });
+            }
+        });
+        handler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.data(head);
+        for (int i = 0; i < chunks; i++) {
+            istr.data(new Buffer(chunk));
+        }
+        istr.data(new Buffer("\r\n--" + boundary + "--\r\n"));
+        istr.end();
+
+        Assert.assertEquals("[success]", events.toString());
+        Assert.assertEquals((long) chunks * chunk.length, received[0]);
+    }
+
+    @Test
+    public void testSplitAtEveryOffset() {
+        // body content with partial boundaries before the real boundary.
+        String[] body = {
+                "--boundary",
+                "",
+                "a\r\r\n--boundar\r\n--boundar\r\n-\r\n--bounda\r--boundary",
+                "--boundary",
+                "",
+                "\r\n--bound",
+                "--boundary--",
+        };
+        Buffer buf = toBuffer(body);
+        for (int i = 0; i <= buf.length(); i++) {
+            test("boundary", buf, new int[] { i },
+                    new FileInfo().content("a\r\r\n--boundar\r\n--boundar\r\n-\r\n--bounda\r--boundary"),
+                    new FileInfo().content("\r\n--bound"),
+                    "success");
+        }
+    }
+
+    @Test
+    public void testSliceHandler() {
+        String[] body = {
+                "--boundary",
+                "",
+                "sliced content",
+                "--boundary--",
+        };
+        final Buffer content = new Buffer();
+        final List<Exception> exceptions = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr);
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                field.sliceHandler(new Handler<ChannelBuffer>() {
+                    public void handle(ChannelBuffer slice) {
+                        content.appendBuffer(new Buffer(slice.copy()));
+                        try {
+                            slice.setByte(0, 'x');
+                        } catch (Exception exc) {
+                            exceptions.add(exc);
+                        }
+                    }
+                });
+            }
+        });
+        istr.process(toBuffer(body));
+
+        Assert.assertEquals(new Buffer("sliced content"), content);
+        Assert.assertEquals(1, exceptions.size());
+        Assert.assertEquals(ReadOnlyBufferException.class, exceptions.get(0).getClass());
+    }
+
+    @Test
+    public void testOptions() {
+        String[] body = {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "0123456789",
+                "--boundary",
+                "content-disposition: form-data; name=\"b\"",
+                "content-type: text/plain",
+                "",
+                "0123456789",
+                "--boundary--",
+        };
+        test(new MultipartOptions().maxParts(1), "boundary", toBuffer(body), new int[0],
+                new FileInfo().name("a").content("0123456789"),
+                new LimitExceededException("Too many parts"));
+        test(new MultipartOptions().maxHeaders(1), "boundary", toBuffer(body), new int[0],
+                new FileInfo().name("a").content("0123456789"),
+                new LimitExceededException("Too many headers"));
+        test(new MultipartOptions().maxBodySize(15), "boundary", toBuffer(body), new int[0],
+                new FileInfo().name("a").content("0123456789"),
+                new LimitExceededException("Body too large"),
+                new LimitExceededException("Body too large"));
+        test(new MultipartOptions().maxHeaderLine(20), "boundary", toBuffer(body), new int[0],
+                new LimitExceededException("Header line too long"));
+        test(new MultipartOptions().maxRequestSize(60), "boundary", toBuffer(body), new int[] { 50 },
+                new LimitExceededException("Request too large"));
+        test(new MultipartOptions().bodyChunkSize(3), "boundary", toBuffer(body), new int[] { 50 },
+                new FileInfo().name("a").content("0123456789"),
+                new FileInfo().name("b").contentType("text/plain").content("0123456789"),
+                "success");
+    }
+
+    @Test
+    public void testPause() {
+        String[] body = {
+                "--boundary",
+                "",
+                "0123456789",
+                "--boundary",
+                "",
+                "abcdefghij",
+                "--boundary--",
+        };
+        final List<Object> events = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().bodyChunkSize(4));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        events.add(buf.toString());
+                        field.pause();
+                    }
+                });
+            }
+        });
+        partHandler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.process(toBuffer(body));
+
+        Assert.assertEquals("[0123]", events.toString());
+        partHandler.resume();
+        Assert.assertEquals("[0123, 4567]", events.toString());
+        for (int i = 0; i < 5; i++) {
+            partHandler.resume();
+        }
+        Assert.assertEquals("[0123, 4567, 89, abcd, efgh, ij, success]", events.toString());
+    }
+
+    @Test
+    public void testResumeParsesBufferedFirst() {
+        String[] body = {
+                "--boundary",
+                "",
+                "0123456789",
+                "--boundary--",
+        };
+        final List<Object> events = new ArrayList<>();
+
+        PausableReadStream istr = new PausableReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().bodyChunkSize(4));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        events.add(buf.toString());
+                        field.pause();
+                    }
+                });
+            }
+        });
+        partHandler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.data(toBuffer(body));
+
+        // The input is not resumed while buffered input pauses the part again.
+        partHandler.resume();
+        partHandler.resume();
+        Assert.assertEquals("[0123, 4567, 89]", events.toString());
+        Assert.assertEquals("[pause, pause, pause]", istr.events.toString());
+        partHandler.resume();
+        Assert.assertEquals("[pause, pause, pause, resume]", istr.events.toString());
+        istr.end();
+        Assert.assertEquals("[0123, 4567, 89, success]", events.toString());
+    }
+
+    @Test
+    public void testLargeBody() {
+        // stream more than 2Gb through the parser, larger than a single Buffer can hold.
+        final long size = 3L * 1024 * 1024 * 1024;
+        final long[] received = new long[1];
+        final List<Object> result = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr);
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        received[0] += buf.length();
+                    }
+                });
+            }
+        });
+        partHandler.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                result.add(exc);
+            }
+        });
+        partHandler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                result.add("success");
+            }
+        });
+
+        byte[] data = new byte[64 * 1024];
+        Arrays.fill(data, (byte) 'x');
+        Buffer chunk = new Buffer(data);
+
+        istr.data(new Buffer("--boundary\r\n\r\n"));
+        for (long sent = 0; sent < size; sent += data.length) {
+            istr.data(chunk);
+        }
+        istr.data(new Buffer("\r\n--boundary--\r\n"));
+        istr.end();
+
+        Assert.assertEquals("[success]", result.toString());
+        Assert.assertEquals(size, received[0]);
+    }
+
     @Test
     public void testSimple() {
         String body[] = new String[] {
@@ -115,7 +444,7 @@ public class MultiPartTest {
                 "--boundary--",
         };
         test("boundary", body,
-                new RuntimeException("Preamble too long"));
+                new LimitExceededException("Preamble too long"));
     }
 
     @Test
@@ -127,7 +456,7 @@ public class MultiPartTest {
                 longString,
         };
         test("boundary", body,
-                new RuntimeException("Header line too long"));
+                new LimitExceededException("Header line too long"));
     }
 
     @Test
@@ -151,6 +480,21 @@ public class MultiPartTest {
                 new RuntimeException("Illegal continuation header   fail: blahrg"));
     }
 
+    @Test
+    public void testContinuationLimit() {
+        List<String> body = new ArrayList<>();
+        body.add("--boundary");
+        body.add("content-disposition: form-data; name=\"a\"");
+        for (int i = 0; i < 1000; i++) {
+            body.add(" x");
+        }
+        body.add("");
+        body.add("0123456789");
+        body.add("--boundary--");
+        test(new MultipartOptions().maxHeaders(10), "boundary", toBuffer(body.toArray(new String[body.size()])), new int[0],
+                new LimitExceededException("Too many headers"));
+    }
+
     @Test
     public void testBase64() {
         String[] body = {
@@ -177,6 +521,308 @@ public class MultiPartTest {
                 "success");
     }
 
+    @Test
+    public void testQuotedPrintable() {
+        String[] body = {
+                "--AaB03x",
+                "content-disposition: form-data; name=\"text\"",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "The quick brown fox jumps over the lazy dog. The quick brown fox jumps ove=",
+                "r the lazy dog. caf=C3=A9",
+                "--AaB03x--",
+        };
+        String t = "The quick brown fox jumps over the lazy dog. ";
+        test("AaB03x", body,
+                new FileInfo().name("text").content(t + t + "caf\u00e9"),
+                "success");
+    }
+
+    @Test
+    public void testRawHeaders() {
+        RawHeaders headers = new RawHeaders();
+        Assert.assertTrue(headers.add(line("Content-Disposition: form-data; name=\"a \\\"b\\\"\";")));
+        headers.append(line("\tFileName = caf\u00e9.txt"));
+        Assert.assertTrue(headers.add(line("X-Custom: 1")));
+        Assert.assertTrue(headers.add(line("x-custom: 2")));
+        Assert.assertTrue(headers.add(line("CONTENT-TYPE : Multipart/Mixed; boundary=inner")));
+        Assert.assertFalse(headers.add(line("no colon")));
+        Assert.assertFalse(headers.add(line(": no name")));
+
+        Assert.assertEquals(4, headers.size());
+        int cd = headers.find(RawHeaders.CONTENT_DISPOSITION);
+        Assert.assertEquals(0, cd);
+        Assert.assertEquals("form-data", headers.value(cd));
+        Assert.assertEquals("a \"b\"", headers.param(cd, "name".getBytes()));
+        Assert.assertEquals("caf\u00e9.txt", headers.param(cd, "filename".getBytes()));
+        Assert.assertNull(headers.param(cd, "size".getBytes()));
+        int ct = headers.find(RawHeaders.CONTENT_TYPE);
+        Assert.assertEquals(3, ct);
+        Assert.assertTrue(headers.valueEquals(ct, "multipart/mixed".getBytes()));
+        Assert.assertEquals("inner", headers.param(ct, "boundary".getBytes()));
+        Assert.assertEquals(-1, headers.find(RawHeaders.CONTENT_TRANSFER_ENCODING));
+
+        Assert.assertEquals("1,2", headers.get("X-Custom").getValue());
+        Assert.assertEquals("inner", headers.get("content-type").getParam("boundary"));
+
+        headers.clear();
+        Assert.assertEquals(0, headers.size());
+        Assert.assertEquals(-1, headers.find(RawHeaders.CONTENT_DISPOSITION));
+        Assert.assertNull(headers.get("x-custom"));
+    }
+
+    private static ChannelBuffer line(String s) {
+        return ChannelBuffers.wrappedBuffer(s.getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testCollectFields() {
+        String[] head = {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "caf\u00e9",
+                "--boundary",
+                "content-disposition: form-data; name=\"file\"; filename=\"a.txt\"",
+                "",
+                "file content",
+                "--boundary",
+                "content-disposition: form-data; name=\"b\"",
+                "content-transfer-encoding: base64",
+                "",
+                "aGVsbG8=",
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "content-type: text/plain; charset=ISO-8859-1",
+                "",
+        };
+        Buffer buf = toBuffer(head);
+        buf.appendBytes(new byte[] { 'c', 'a', 'f', (byte) 0xe9 });
+        buf.appendString("\r\n--boundary\r\ncontent-disposition: form-data; name=\"empty\"\r\n\r\n\r\n--boundary--\r\n");
+
+        final List<Object> events = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        final MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().collectFields(true));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                events.add(field.getName());
+            }
+        });
+        partHandler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add(partHandler.getFormFields());
+            }
+        });
+        for (int i = 0; i < buf.length(); i += 7) {
+            istr.data(buf.getBuffer(i, Math.min(i + 7, buf.length())));
+        }
+        istr.end();
+
+        Assert.assertEquals("[file, {a=[caf\u00e9, caf\u00e9], b=[hello], empty=[]}]", events.toString());
+
+        test(new MultipartOptions().collectFields(true).maxFieldSize(4), "boundary", buf, new int[0],
+                new LimitExceededException("Field too large a"));
+        test(new MultipartOptions().collectFields(true).maxFormSize(8), "boundary", buf, new int[0],
+                new FileInfo().name("file").filename("a.txt").content("file content"),
+                new LimitExceededException("Form too large"));
+    }
+
+    @Test
+    public void testProgress() {
+        String[] body = {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "0123456789",
+                "--boundary",
+                "content-disposition: form-data; name=\"b\"",
+                "",
+                "0123456789",
+                "--boundary--",
+        };
+        Buffer buf = toBuffer(body);
+        final List<String> events = new ArrayList<>();
+        final List<MultipartProgress> objects = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().progressInterval(0));
+        handler.contentLength(buf.length());
+        handler.progressHandler(new Handler<MultipartProgress>() {
+            @Override
+            public void handle(MultipartProgress progress) {
+                objects.add(progress);
+                events.add(progress.getBytesReceived() + " " + progress.getRemainingBytes() + " " + progress.getPartsCompleted() + " " + progress.isEnded());
+            }
+        });
+        istr.data(buf.getBuffer(0, 70));
+        istr.data(buf.getBuffer(70, buf.length()));
+        istr.end();
+
+        int length = buf.length();
+        Assert.assertEquals("[70 " + (length - 70) + " 0 false, " + length + " 0 2 false, " + length + " 0 2 true]", events.toString());
+        Assert.assertSame(objects.get(0), objects.get(2));
+        Assert.assertEquals(length, handler.getContentLength());
+
+        // Throttled, only the last event is sent.
+        events.clear();
+        istr = new TestReadStream();
+        handler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().progressInterval(60000));
+        handler.progressHandler(new Handler<MultipartProgress>() {
+            @Override
+            public void handle(MultipartProgress progress) {
+                events.add(progress.getBytesReceived() + " " + progress.getRemainingBytes() + " " + progress.getEstimatedRemainingMillis() + " " + progress.isEnded());
+            }
+        });
+        istr.data(buf.getBuffer(0, 70));
+        istr.data(buf.getBuffer(70, buf.length()));
+        istr.end();
+        Assert.assertEquals("[" + length + " -1 -1 true]", events.toString());
+    }
+
+    @Test(expected = LimitExceededException.class)
+    public void testContentLengthLimit() {
+        new MultipartHandler("boundary".getBytes(), new TestReadStream(), new MultipartOptions().maxRequestSize(100)).contentLength(101);
+    }
+
+    @Test
+    public void testNegativeContentLength() {
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions());
+        handler.contentLength(-1);
+        Assert.assertEquals(-1, handler.getContentLength());
+
+        final List<Object> events = new ArrayList<>();
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                events.add(field.getName());
+            }
+        });
+        handler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.process(toBuffer(new String[] {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "value",
+                "--boundary--",
+        }));
+        Assert.assertEquals("[a, success]", events.toString());
+    }
+
+    @Test
+    public void testMetrics() {
+        String[] body = {
+                "--boundary",
+                "",
+                "0123456789",
+                "--boundary",
+                "content-transfer-encoding: base64",
+                "",
+                "aGVsbG8=",
+                "--boundary",
+                "",
+                "",
+                "--boundary--",
+        };
+        CountingMultipartMetrics metrics = new CountingMultipartMetrics();
+        final List<Object> events = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().metrics(metrics));
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(final FieldInfo field) {
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        events.add(buf.toString());
+                        field.pause();
+                    }
+                });
+            }
+        });
+        partHandler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        istr.process(toBuffer(body));
+        while (!events.contains("success")) {
+            partHandler.resume();
+        }
+
+        Assert.assertEquals("[0123456789, hello, , success]", events.toString());
+        Assert.assertEquals(toBuffer(body).length(), metrics.getBytes());
+        Assert.assertEquals(1, metrics.getRequests());
+        Assert.assertEquals(0, metrics.getFailedRequests());
+        Assert.assertEquals(3, metrics.getParts());
+        Assert.assertEquals(1, metrics.getDecodedParts());
+        Assert.assertEquals(5, metrics.getDecodedBytes());
+        Assert.assertEquals(1, metrics.getPartSizeCount(0));
+        Assert.assertEquals(2, metrics.getPartSizeCount(4));
+        Assert.assertEquals(3, metrics.getPauses());
+        Assert.assertTrue(metrics.getStateNanos(State.HEADERS) > 0);
+        Assert.assertTrue(metrics.getStateNanos(State.BODY) > 0);
+
+        test(new MultipartOptions().metrics(metrics).maxParts(1), "boundary", toBuffer(body), new int[0],
+                new FileInfo().content("0123456789"),
+                new LimitExceededException("Too many parts"));
+        test(new MultipartOptions().metrics(metrics).maxHeaderLine(10), "boundary", toBuffer(body), new int[0],
+                new FileInfo().content("0123456789"),
+                new LimitExceededException("Header line too long"));
+        Assert.assertEquals(3, metrics.getRequests());
+        Assert.assertEquals(2, metrics.getFailedRequests());
+        Assert.assertEquals(2, metrics.getErrors().size());
+        Assert.assertEquals(1, metrics.getErrors().get("Too many parts").get());
+        Assert.assertEquals(1, metrics.getErrors().get("Header line too long").get());
+    }
+
+    @Test
+    public void testInflate() {
+        String[] head = {
+                "--AaB03x",
+                "content-disposition: form-data; name=\"text\"",
+                "Content-Encoding: gzip",
+                "",
+                "",
+        };
+        String t = "The quick brown fox jumps over the lazy dog. ";
+        Buffer buf = new Buffer(toBuffer(head).toString().substring(0, toBuffer(head).length() - 2));
+        buf.appendBytes(InflateTest.gzip(t + t + t));
+        buf.appendString("\r\n--AaB03x--\r\n");
+        test(new MultipartOptions().inflate(true), "AaB03x", buf, new int[] { 80, 90 },
+                new FileInfo().name("text").content(t + t + t),
+                "success");
+
+        Buffer large = new Buffer(toBuffer(head).toString().substring(0, toBuffer(head).length() - 2));
+        large.appendBytes(InflateTest.gzip(new byte[1024 * 1024]));
+        large.appendString("\r\n--AaB03x--\r\n");
+        test(new MultipartOptions().inflate(true).maxInflateRatio(10), "AaB03x", large, new int[0],
+                new LimitExceededException("Decompression ratio exceeded"),
+                "success");
+    }
+
+    @Test
+    public void testInflateContentType() {
+        String[] head = {
+                "--AaB03x",
+                "content-disposition: form-data; name=\"data\"; filename=\"data.gz\"",
+                "Content-Type: application/gzip",
+                "",
+                "",
+        };
+        String t = "The quick brown fox jumps over the lazy dog. ";
+        Buffer buf = new Buffer(toBuffer(head).toString().substring(0, toBuffer(head).length() - 2));
+        buf.appendBytes(InflateTest.gzip(t + t + t));
+        buf.appendString("\r\n--AaB03x--\r\n");
+        test(new MultipartOptions().inflate(true), "AaB03x", buf, new int[] { 80, 90 },
+                new FileInfo().name("data").filename("data.gz").contentType("application/gzip").content(t + t + t),
+                "success");
+    }
+
     @Test
     public void testNestedMixed() {
         // Test taken from https://github.com/isaacs/multipart-js/blob/master/test/fixture.js
@@ -228,19 +874,182 @@ public class MultiPartTest {
                 new FileInfo().filename("hello4.txt").content("hello for the world").contentType("text/plain"),
                 new FileInfo().filename("hello-outer.txt").content("hello, outer world").contentType("text/plain"),
                 "success");
+        // inner2 and inner3 are both at depth 2.
+        test(new MultipartOptions().maxDepth(2), "outer", toBuffer(body), new int[0],
+                new FileInfo().filename("hello.txt").content("hello, world").contentType("text/plain"),
+                new FileInfo().filename("hello2.txt").content("hello to the world").contentType("text/plain"),
+                new FileInfo().filename("hello3.txt").content("hello, free the world").contentType("text/plain"),
+                new FileInfo().filename("hello4.txt").content("hello for the world").contentType("text/plain"),
+                new FileInfo().filename("hello-outer.txt").content("hello, outer world").contentType("text/plain"),
+                "success");
+        test(new MultipartOptions().maxDepth(1), "outer", toBuffer(body), new int[0],
+                new LimitExceededException("Nesting too deep"));
     }
 
-    public void test(String boundary, String[] body, Object... expected) {
-        final List<Object> files = new ArrayList<>();
+    @Test
+    public void testLimitStopsInput() {
+        final List<Object> events = new ArrayList<>();
+        PausableReadStream istr = new PausableReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().maxRequestSize(30));
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            @Override
+            public void handle(FieldInfo field) {
+                events.add(field.getName());
+            }
+        });
+        handler.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                events.add(exc);
+            }
+        });
+        istr.data(new Buffer("--boundary\r\n"));
+        istr.data(new Buffer("content-disposition: form-data; name=\"a\"\r\n\r\n"));
+        istr.data(new Buffer("more data"));
+        istr.end();
+
+        Assert.assertEquals(1, events.size());
+        Assert.assertTrue(events.get(0) instanceof LimitExceededException);
+        Assert.assertEquals("Request too large", ((Exception) events.get(0)).getMessage());
+        Assert.assertEquals("[pause]", istr.events.toString());
+    }
+
+    @Test
+    public void testSkip() {
+        String[] head = {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "first",
+                "--boundary",
+                "content-disposition: form-data; name=\"skip\"; filename=\"big.bin\"",
+                "content-transfer-encoding: base64",
+                "",
+        };
+        Buffer buf = toBuffer(head);
+        for (int i = 0; i < 100; i++) {
+            buf.appendString("--boundar\r\n-boundary\r\r\n--bound");
+        }
+        buf.appendString("\r\n--boundary\r\ncontent-disposition: form-data; name=\"b\"\r\n\r\nlast\r\n--boundary--\r\n");
+
+        for (int step : new int[] { 1, 7, 64, buf.length() }) {
+            final List<Object> events = new ArrayList<>();
+            TestReadStream istr = new TestReadStream();
+            final MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions());
+            partHandler.fieldHandler(new Handler<FieldInfo>() {
+                @Override
+                public void handle(final FieldInfo field) {
+                    final String name = field.getName();
+                    if (name.equals("skip")) {
+                        field.skip();
+                    }
+                    field.dataHandler(new Handler<Buffer>() {
+                        public void handle(Buffer buf) {
+                            events.add(name + "=" + buf);
+                        }
+                    });
+                    field.endHandler(new Handler<Void>() {
+                        public void handle(Void arg) {
+                            events.add("end " + name);
+                        }
+                    });
+                }
+            });
+            partHandler.exceptionHandler(new Handler<Exception>() {
+                @Override
+                public void handle(Exception exc) {
+                    events.add(exc);
+                }
+            });
+            partHandler.endHandler(new Handler<Void>() {
+                public void handle(Void arg) {
+                    events.add("success");
+                }
+            });
+            for (int i = 0; i < buf.length(); i += step) {
+                istr.data(buf.getBuffer(i, Math.min(i + step, buf.length())));
+            }
+            istr.end();
+
+            Assert.assertEquals("step " + step, "[a=first, end a, b=last, end b, success]", events.toString());
+        }
+
+        test(new MultipartOptions().maxBodySize(1000).acceptNames("a", "b"), "boundary", buf, new int[] { 100, 200 },
+                new FileInfo().name("a").content("first"),
+                new LimitExceededException("Body too large"));
+    }
 
+    @Test
+    public void testAccept() {
+        String[] body = {
+                "--boundary",
+                "content-disposition: form-data; name=\"a\"",
+                "",
+                "text",
+                "--boundary",
+                "content-disposition: form-data; name=\"files\"; filename=\"a.png\"",
+                "content-type: IMAGE/png",
+                "",
+                "png",
+                "--boundary",
+                "content-disposition: form-data; name=\"files\"; filename=\"a.pdf\"",
+                "content-type: application/pdf",
+                "",
+                "pdf",
+                "--boundary",
+                "content-type: image/gif",
+                "",
+                "gif",
+                "--boundary--",
+        };
+        Buffer buf = toBuffer(body);
+        FileInfo text = new FileInfo().name("a").content("text");
+        FileInfo png = new FileInfo().name("files").filename("a.png").contentType("IMAGE/png").content("png");
+        FileInfo pdf = new FileInfo().name("files").filename("a.pdf").contentType("application/pdf").content("pdf");
+
+        test(new MultipartOptions().acceptNames("files"), "boundary", buf, new int[0], png, pdf, "success");
+        test(new MultipartOptions().acceptContentTypes("image/*"), "boundary", buf, new int[0],
+                png, new FileInfo().contentType("image/gif").content("gif"), "success");
+        test(new MultipartOptions().acceptContentTypes("text/plain", "application/pdf"), "boundary", buf, new int[0],
+                text, pdf, "success");
+        test(new MultipartOptions().acceptNames("files").acceptContentTypes("image/png"), "boundary", buf, new int[0],
+                png, "success");
+    }
+
+    private static String randomString(Random rnd, int len, String chars) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append(chars.charAt(rnd.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    private static Buffer toBuffer(String[] body) {
         Buffer buf = new Buffer();
         for (String l : body) {
             buf.appendString(l);
             buf.appendString("\r\n");
         }
+        return buf;
+    }
+
+    public void test(String boundary, String[] body, Object... expected) {
+        test(boundary, toBuffer(body), new int[0], expected);
+    }
+
+    /**
+     * Send the body to the handler as separate buffers, split at the offsets
+     * in splits.
+     */
+    public void test(String boundary, Buffer buf, int[] splits, Object... expected) {
+        test(new MultipartOptions(), boundary, buf, splits, expected);
+    }
+
+    public void test(MultipartOptions options, String boundary, Buffer buf, int[] splits, Object... expected) {
+        final List<Object> files = new ArrayList<>();
 
         TestReadStream istr = new TestReadStream();
-        final MultipartHandler partHandler = new MultipartHandler(boundary.getBytes(), istr);
+        final MultipartHandler partHandler = new MultipartHandler(boundary.getBytes(), istr, options);
 
         partHandler.fieldHandler(new Handler<FieldInfo>() {
             @Override
@@ -261,6 +1070,12 @@ public class MultiPartTest {
                         files.add(file);
                     }
                 });
+                field.exceptionHandler(new Handler<Exception>() {
+                    @Override
+                    public void handle(Exception exc) {
+                        files.add(exc);
+                    }
+                });
             }
         });
         partHandler.exceptionHandler(new Handler<Exception>() {
@@ -275,7 +1090,13 @@ public class MultiPartTest {
             }
         });
 
-        istr.process(buf);
+        int s = 0;
+        for (int split : splits) {
+            istr.data(buf.getBuffer(s, split));
+            s = split;
+        }
+        istr.data(buf.getBuffer(s, buf.length()));
+        istr.end();
 
         System.out.println(files);
         Assert.assertEquals(expected.length, files.size());
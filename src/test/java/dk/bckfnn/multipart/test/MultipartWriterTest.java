@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartWriter;
+
+public class MultipartWriterTest {
+
+    @Test
+    public void testWrite() {
+        TestWriteStream out = new TestWriteStream();
+        TestReadStream file = new TestReadStream();
+        final List<Object> results = new ArrayList<>();
+        MultipartWriter writer = new MultipartWriter(out, "boundary");
+        writer.resultHandler(new AsyncResultHandler<MultipartWriter>() {
+            public void handle(AsyncResult<MultipartWriter> result) {
+                results.add(result.succeeded());
+            }
+        });
+        writer.field("a", "caf\u00e9");
+        writer.file("f", "x\"y.txt", "text/plain", file);
+        writer.field("b", "2");
+        writer.end();
+        file.data(new Buffer("file "));
+        file.data(new Buffer("content"));
+        Assert.assertEquals(0, results.size());
+        file.end();
+
+        Assert.assertEquals("[true]", results.toString());
+        Assert.assertEquals("multipart/form-data; boundary=boundary", writer.getContentType());
+        String expected = "--boundary\r\n" +
+                "Content-Disposition: form-data; name=\"a\"\r\n\r\n" +
+                "caf\u00e9\r\n" +
+                "--boundary\r\n" +
+                "Content-Disposition: form-data; name=\"f\"; filename=\"x%22y.txt\"\r\n" +
+                "Content-Type: text/plain\r\n\r\n" +
+                "file content\r\n" +
+                "--boundary\r\n" +
+                "Content-Disposition: form-data; name=\"b\"\r\n\r\n" +
+                "2\r\n" +
+                "--boundary--\r\n";
+        Assert.assertEquals(expected, out.body.toString("UTF-8"));
+        Assert.assertEquals(out.body.length(), writer.getBytesWritten());
+        Assert.assertEquals("[a caf\u00e9, f file content, b 2]", parse(out.body, "boundary").toString());
+    }
+
+    @Test
+    public void testEmpty() {
+        TestWriteStream out = new TestWriteStream();
+        new MultipartWriter(out, "boundary").end();
+        Assert.assertEquals("--boundary--\r\n", out.body.toString());
+    }
+
+    @Test
+    public void testBackpressure() {
+        TestWriteStream out = new TestWriteStream();
+        PausableReadStream file = new PausableReadStream();
+        MultipartWriter writer = new MultipartWriter(out);
+        writer.file("f", "f.bin", null, file);
+        Assert.assertEquals("[pause, resume]", file.events.toString());
+
+        file.data(new Buffer("abc"));
+        out.full = true;
+        file.data(new Buffer("def"));
+        Assert.assertEquals("[pause, resume, pause]", file.events.toString());
+        writer.field("x", "1");
+        writer.end();
+        out.drain();
+        Assert.assertEquals("[pause, resume, pause, resume]", file.events.toString());
+
+        out.full = true;
+        file.end();
+        Assert.assertFalse(out.body.toString().contains("name=\"x\""));
+        out.drain();
+        Assert.assertEquals("[f abcdef, x 1]", parse(out.body, writer.getBoundary()).toString());
+    }
+
+    @Test
+    public void testEarlyEnd() {
+        TestWriteStream out = new TestWriteStream();
+        TestReadStream first = new TestReadStream();
+        TestReadStream second = new TestReadStream();
+        MultipartWriter writer = new MultipartWriter(out, "boundary");
+        writer.file("first", "1.txt", null, first);
+        writer.file("second", "2.txt", null, second);
+        writer.end();
+        second.data(new Buffer("two"));
+        second.end();
+        first.data(new Buffer("one"));
+        first.end();
+        Assert.assertEquals("[first one, second two]", parse(out.body, "boundary").toString());
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("line " + i + "\r\n");
+        }
+        final File file = File.createTempFile("MultipartWriterTest", ".txt");
+        Files.write(file.toPath(), content.toString().getBytes());
+
+        final Vertx vertx = Vertx.newVertx();
+        final TestWriteStream out = new TestWriteStream();
+        final List<Object> results = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        vertx.runOnLoop(new Handler<Void>() {
+            @Override
+            public void handle(Void arg) {
+                MultipartWriter writer = new MultipartWriter(out, "boundary");
+                writer.resultHandler(new AsyncResultHandler<MultipartWriter>() {
+                    public void handle(AsyncResult<MultipartWriter> result) {
+                        results.add(result.succeeded() ? "success" : result.exception);
+                        done.countDown();
+                    }
+                });
+                writer.file("file", "a.txt", "text/plain", vertx.fileSystem(), file.getPath());
+                writer.field("after", "file");
+                writer.end();
+            }
+        });
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        vertx.stop();
+        file.delete();
+        Assert.assertEquals("[success]", results.toString());
+        Assert.assertEquals("[file " + content + ", after file]", parse(out.body, "boundary").toString());
+    }
+
+    /**
+     * Parse a body with MultipartHandler and return "name content" for each
+     * part.
+     */
+    private static List<String> parse(Buffer body, String boundary) {
+        final List<String> parts = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler partHandler = new MultipartHandler(boundary.getBytes(), istr);
+        partHandler.fieldHandler(new Handler<FieldInfo>() {
+            public void handle(final FieldInfo field) {
+                final String name = field.getName();
+                final Buffer content = new Buffer();
+                field.dataHandler(new Handler<Buffer>() {
+                    public void handle(Buffer buf) {
+                        content.appendBuffer(buf);
+                    }
+                });
+                field.endHandler(new Handler<Void>() {
+                    public void handle(Void arg) {
+                        parts.add(name + " " + content.toString("UTF-8"));
+                    }
+                });
+            }
+        });
+        partHandler.exceptionHandler(new Handler<Exception>() {
+            public void handle(Exception exc) {
+                parts.add(exc.toString());
+            }
+        });
+        istr.process(body);
+        return parts;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+public class PassthroughTest {
+    static final Buffer BODY = new Buffer(
+            "--boundary\r\n" +
+            "Content-Disposition: form-data; name=\"a\"\r\n\r\n" +
+            "first\r\n" +
+            "--boundary\r\n" +
+            "Content-Disposition: form-data; name=\"f\"; filename=\"f.txt\"\r\n" +
+            "Content-Transfer-Encoding: base64\r\n\r\n" +
+            "aGVsbG8=\r\n" +
+            "--boundary--\r\n");
+
+    @Test
+    public void testRelay() {
+        final List<String> fields = new ArrayList<>();
+        final List<Object> events = new ArrayList<>();
+        TestWriteStream out = new TestWriteStream();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr);
+        handler.passthrough(out);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            public void handle(FieldInfo field) {
+                fields.add(field.getName() + " " + field.getFilename());
+            }
+        });
+        handler.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("success");
+            }
+        });
+        List<Buffer> chunks = new ArrayList<>();
+        for (int i = 0; i < BODY.length(); i += 10) {
+            Buffer chunk = BODY.getBuffer(i, Math.min(i + 10, BODY.length()));
+            chunks.add(chunk);
+            istr.data(chunk);
+        }
+        istr.end();
+
+        Assert.assertEquals("[a null, f f.txt]", fields.toString());
+        Assert.assertEquals("[success]", events.toString());
+        Assert.assertEquals(BODY, out.body);
+        Assert.assertEquals(chunks.size(), out.buffers.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            Assert.assertSame(chunks.get(i), out.buffers.get(i));
+        }
+    }
+
+    @Test
+    public void testHeldWhilePaused() {
+        final List<FieldInfo> fields = new ArrayList<>();
+        TestWriteStream out = new TestWriteStream();
+        TestReadStream istr = new TestReadStream();
+        final MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr);
+        handler.passthrough(out);
+        handler.fieldHandler(new Handler<FieldInfo>() {
+            public void handle(FieldInfo field) {
+                fields.add(field);
+                // Wait for a routing decision.
+                handler.pause();
+            }
+        });
+        istr.data(BODY);
+        Assert.assertEquals(1, fields.size());
+        Assert.assertEquals(0, out.body.length());
+
+        handler.resume();
+        Assert.assertEquals(2, fields.size());
+        Assert.assertEquals(0, out.body.length());
+        handler.resume();
+        Assert.assertEquals(BODY, out.body);
+    }
+
+    @Test
+    public void testLimit() {
+        final List<Object> events = new ArrayList<>();
+        TestWriteStream out = new TestWriteStream();
+        TestReadStream istr = new TestReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr, new MultipartOptions().maxBodySize(6));
+        handler.passthrough(out);
+        handler.exceptionHandler(new Handler<Exception>() {
+            public void handle(Exception exc) {
+                events.add(exc.getMessage());
+            }
+        });
+        Buffer first = BODY.getBuffer(0, 60);
+        istr.data(first);
+        istr.data(BODY.getBuffer(60, BODY.length()));
+        istr.end();
+
+        Assert.assertEquals("[Body too large]", events.toString());
+        Assert.assertEquals(first, out.body);
+    }
+
+    @Test
+    public void testBackpressure() {
+        TestWriteStream out = new TestWriteStream();
+        PausableReadStream istr = new PausableReadStream();
+        MultipartHandler handler = new MultipartHandler("boundary".getBytes(), istr);
+        handler.passthrough(out);
+        out.full = true;
+        istr.data(BODY.getBuffer(0, 20));
+        Assert.assertEquals("[pause]", istr.events.toString());
+        // A resume from a handler does not resume the input while the queue is full.
+        handler.pause();
+        handler.resume();
+        Assert.assertEquals("[pause, pause]", istr.events.toString());
+        out.drain();
+        Assert.assertEquals("[pause, pause, resume]", istr.events.toString());
+        istr.data(BODY.getBuffer(20, BODY.length()));
+        Assert.assertEquals(BODY, out.body);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A TestReadStream that records the calls to pause() and resume().
+ */
+public class PausableReadStream extends TestReadStream {
+    final List<String> events = new ArrayList<>();
+
+    @Override
+    public void pause() {
+        events.add("pause");
+    }
+
+    @Override
+    public void resume() {
+        events.add("resume");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.BufferPool;
+import dk.bckfnn.multipart.QuotedPrintableDecodeHandler;
+
+public class QuotedPrintableTest {
+
+    @Test
+    public void testSimple() {
+        test("J=C3=B8rgen said: caf=c3=a9 =3D 1", new Buffer("J\u00f8rgen said: caf\u00e9 = 1"), null);
+    }
+
+    @Test
+    public void testSoftLineBreak() {
+        test("The quick brown fox jumps=\r\n over the lazy =  \r\ndog.", new Buffer("The quick brown fox jumps over the lazy dog."), null);
+    }
+
+    @Test
+    public void testTrailingWhitespace() {
+        test("line one  \r\nline two\t\r\n\t line three ", new Buffer("line one\r\nline two\r\n\t line three"), null);
+    }
+
+    @Test
+    public void testIllegalEscape() {
+        test("abc=XYdef", new Buffer(""), new RuntimeException("Illegal quoted-printable escape =X"));
+        test("abc=4Gdef", new Buffer(""), new RuntimeException("Illegal quoted-printable escape =4G"));
+    }
+
+    @Test
+    public void testTrailingData() {
+        test("abc=4", new Buffer("abc"), new RuntimeException("Illegal trailing quoted-printable data"));
+    }
+
+    @Test
+    public void testSplit() {
+        String encoded = "caf=C3=A9 =\r\nau lait  \r\n=3D";
+        for (int i = 0; i <= encoded.length(); i++) {
+            final Buffer out = new Buffer();
+            TestReadStream istr = new TestReadStream();
+            QuotedPrintableDecodeHandler qpHandler = new QuotedPrintableDecodeHandler(istr);
+            qpHandler.dataHandler(new Handler<Buffer>() {
+                public void handle(Buffer buf) {
+                    out.appendBuffer(buf);
+                }
+            });
+            istr.data(new Buffer(encoded.substring(0, i)));
+            istr.data(new Buffer(encoded.substring(i)));
+            istr.end();
+            Assert.assertEquals(new Buffer("caf\u00e9 au lait\r\n="), out);
+        }
+    }
+
+    @Test
+    public void testReaderIndex() {
+        Buffer in = new Buffer("XXXXcaf=C3=A9");
+        in.getChannelBuffer().readerIndex(4);
+        final Buffer out = new Buffer();
+        TestReadStream istr = new TestReadStream();
+        QuotedPrintableDecodeHandler qpHandler = new QuotedPrintableDecodeHandler(istr);
+        qpHandler.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        istr.data(in);
+        istr.end();
+        Assert.assertEquals(new Buffer("caf\u00e9"), out);
+    }
+
+    @Test
+    public void testIllegalReleasesBuffer() {
+        for (String body : new String[] { "abc=XY", "abc=4G", "abc= x", "abc=\rx" }) {
+            final List<Buffer> outstanding = new ArrayList<>();
+            TestReadStream istr = new TestReadStream();
+            QuotedPrintableDecodeHandler qpHandler = new QuotedPrintableDecodeHandler(istr);
+            qpHandler.bufferPool(new BufferPool() {
+                @Override
+                public Buffer acquire(int size) {
+                    Buffer buf = new Buffer(size);
+                    outstanding.add(buf);
+                    return buf;
+                }
+
+                @Override
+                public void release(Buffer buf) {
+                    Assert.assertTrue(outstanding.remove(buf));
+                }
+            });
+            qpHandler.exceptionHandler(new Handler<Exception>() {
+                @Override
+                public void handle(Exception exc) {
+                }
+            });
+            istr.data(new Buffer(body));
+            Assert.assertEquals(body, 0, outstanding.size());
+        }
+    }
+
+    public void test(String body, Buffer expected, Exception exc) {
+        final Buffer out = new Buffer();
+        final List<Exception> exceptions = new ArrayList<>();
+
+        TestReadStream istr = new TestReadStream();
+        final QuotedPrintableDecodeHandler qpHandler = new QuotedPrintableDecodeHandler(istr);
+
+        qpHandler.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.appendBuffer(buf);
+            }
+        });
+        qpHandler.exceptionHandler(new Handler<Exception>() {
+            @Override
+            public void handle(Exception exc) {
+                exceptions.add(exc);
+            }
+        });
+
+        istr.process(new Buffer(body));
+
+        Assert.assertEquals(expected, out);
+        if (exc != null) {
+            Assert.assertEquals(1, exceptions.size());
+            Assert.assertEquals(exc.toString(), exceptions.get(0).toString());
+        } else {
+            Assert.assertEquals(0, exceptions.size());
+        }
+    }
+}
@@ -57,4 +57,12 @@ public class TestReadStream implements ReadStream {
         dataHandler.handle(buf);
         endHandler.handle(null);
     }
+
+    public void data(Buffer buf) {
+        dataHandler.handle(buf);
+    }
+
+    public void end() {
+        endHandler.handle(null);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+
+/**
+ * Parses a multipart body on a vert.x event loop and collects the results of
+ * the upload sinks created by the fieldHandler.
+ */
+public class TestUpload<T> implements AsyncResultHandler<T> {
+    final Vertx vertx = Vertx.newVertx();
+    final List<T> results = new ArrayList<>();
+    final List<Exception> exceptions = new ArrayList<>();
+    private final CountDownLatch done;
+    private final CountDownLatch end = new CountDownLatch(1);
+
+    /**
+     * Constructor.
+     * 
+     * @param count the number of results to wait for.
+     */
+    public TestUpload(int count) {
+        done = new CountDownLatch(count);
+    }
+
+    /**
+     * Parse the body on the event loop, sent as 1000 byte buffers.
+     */
+    public void parse(final Buffer body, final MultipartOptions options, final Handler<FieldInfo> fieldHandler) {
+        vertx.runOnLoop(new Handler<Void>() {
+            @Override
+            public void handle(Void arg) {
+                TestReadStream istr = new TestReadStream();
+                MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, options);
+                partHandler.fieldHandler(fieldHandler);
+                partHandler.endHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void arg) {
+                        end.countDown();
+                    }
+                });
+                for (int i = 0; i < body.length(); i += 1000) {
+                    istr.data(body.getBuffer(i, Math.min(i + 1000, body.length())));
+                }
+                istr.end();
+            }
+        });
+    }
+
+    @Override
+    public void handle(AsyncResult<T> result) {
+        if (result.failed()) {
+            exceptions.add(result.exception);
+        } else {
+            results.add(result.result);
+        }
+        done.countDown();
+    }
+
+    /**
+     * Wait for the results.
+     */
+    public void await() throws InterruptedException {
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Wait for the endHandler of the MultipartHandler.
+     */
+    public void awaitEnd() throws InterruptedException {
+        Assert.assertTrue("endHandler not called", end.await(10, TimeUnit.SECONDS));
+    }
+
+    public void stop() {
+        vertx.stop();
+    }
+
+    /**
+     * Append a part with the name, filename and content to the body.
+     */
+    static void part(Buffer body, String name, String filename, String content) {
+        body.appendString("--boundary\r\n");
+        body.appendString("content-disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n\r\n");
+        body.appendString(content);
+        body.appendString("\r\n");
+    }
+
+    /**
+     * Append the close delimiter to the body.
+     */
+    static void end(Buffer body) {
+        body.appendString("--boundary--\r\n");
+    }
+
+    static String content(int lines) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            content.append("line " + i + "\r\n");
+        }
+        return content.toString();
+    }
+
+    static String tempFile() {
+        return new File(System.getProperty("java.io.tmpdir"), "TestUpload-" + System.nanoTime()).getPath();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.WriteStream;
+
+/**
+ * A WriteStream that collects the data written to it. The write queue is full
+ * while full is set, drain() clears it and calls the drainHandler.
+ */
+public class TestWriteStream implements WriteStream {
+    final Buffer body = new Buffer();
+    final List<Buffer> buffers = new ArrayList<>();
+    boolean full;
+    private Handler<Void> drainHandler;
+
+    @Override
+    public void writeBuffer(Buffer buf) {
+        buffers.add(buf);
+        body.appendBuffer(buf);
+    }
+
+    @Override
+    public void setWriteQueueMaxSize(int maxSize) {
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return full;
+    }
+
+    @Override
+    public void drainHandler(Handler<Void> drainHandler) {
+        this.drainHandler = drainHandler;
+    }
+
+    @Override
+    public void exceptionHandler(Handler<Exception> exceptionHandler) {
+    }
+
+    void drain() {
+        full = false;
+        Handler<Void> handler = drainHandler;
+        drainHandler = null;
+        if (handler != null) {
+            handler.handle(null);
+        }
+    }
+}
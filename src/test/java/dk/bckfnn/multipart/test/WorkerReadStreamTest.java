@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.bckfnn.multipart.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import dk.bckfnn.multipart.MultipartHandler;
+import dk.bckfnn.multipart.MultipartHandler.FieldInfo;
+import dk.bckfnn.multipart.MultipartOptions;
+import dk.bckfnn.multipart.WorkerReadStream;
+
+public class WorkerReadStreamTest {
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void testOrder() throws Exception {
+        ExecutorService worker = Executors.newFixedThreadPool(4);
+        ExecutorService loop = Executors.newSingleThreadExecutor();
+        final StringBuilder out = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        final CountDownLatch done = new CountDownLatch(1);
+        final TestReadStream istr = new TestReadStream();
+        final WorkerReadStream stream = new WorkerReadStream(istr, worker, loop, 1000);
+        stream.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                out.append(buf.toString());
+            }
+        });
+        stream.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                out.append("end");
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            final String s = i + ",";
+            expected.append(s);
+            loop.execute(new Runnable() {
+                public void run() {
+                    istr.data(new Buffer(s));
+                }
+            });
+        }
+        loop.execute(new Runnable() {
+            public void run() {
+                istr.end();
+            }
+        });
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        worker.shutdown();
+        loop.shutdown();
+        Assert.assertEquals(expected + "end", out.toString());
+    }
+
+    @Test
+    public void testBackpressure() {
+        final List<Integer> sizes = new ArrayList<>();
+        PausableReadStream istr = new PausableReadStream();
+        final WorkerReadStream stream = new WorkerReadStream(istr, DIRECT, DIRECT, 4000);
+        stream.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                sizes.add(buf.length());
+                stream.pause();
+            }
+        });
+        for (int i = 0; i < 6; i++) {
+            istr.data(new Buffer(new byte[1000]));
+        }
+        Assert.assertEquals(1, sizes.size());
+        Assert.assertEquals(5000, stream.getQueued());
+        Assert.assertEquals("[pause]", istr.events.toString());
+
+        stream.resume();
+        Assert.assertEquals(2, sizes.size());
+        Assert.assertEquals("[pause]", istr.events.toString());
+        stream.resume();
+        stream.resume();
+        Assert.assertEquals(2000, stream.getQueued());
+        Assert.assertEquals("[pause, resume]", istr.events.toString());
+    }
+
+    @Test
+    public void testHandlerException() {
+        final List<Object> events = new ArrayList<>();
+        TestReadStream istr = new TestReadStream();
+        WorkerReadStream stream = new WorkerReadStream(istr, DIRECT, DIRECT, 4000);
+        stream.dataHandler(new Handler<Buffer>() {
+            public void handle(Buffer buf) {
+                events.add(buf.toString());
+                throw new RuntimeException("Consumer failed");
+            }
+        });
+        stream.endHandler(new Handler<Void>() {
+            public void handle(Void arg) {
+                events.add("end");
+            }
+        });
+        stream.exceptionHandler(new Handler<Exception>() {
+            public void handle(Exception exc) {
+                events.add(exc.getMessage());
+            }
+        });
+        istr.data(new Buffer("a"));
+        istr.data(new Buffer("b"));
+        istr.end();
+        Assert.assertEquals("[a, Consumer failed]", events.toString());
+        Assert.assertEquals(0, stream.getQueued());
+    }
+
+    @Test
+    public void testOffload() throws Exception {
+        ExecutorService worker = Executors.newFixedThreadPool(2);
+        final ExecutorService loop = Executors.newSingleThreadExecutor();
+        final List<String> fields = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch done = new CountDownLatch(2);
+        final Buffer body = new Buffer();
+        body.appendString("--boundary\r\ncontent-disposition: form-data; name=\"a\"\r\n\r\n");
+        body.appendBuffer(new Buffer(new byte[100000]));
+        body.appendString("\r\n--boundary\r\ncontent-disposition: form-data; name=\"b\"\r\n\r\n");
+        body.appendString("second field");
+        body.appendString("\r\n--boundary--\r\n");
+
+        final MultipartOptions options = new MultipartOptions().bodyChunkSize(1000).maxWorkerQueue(5000).worker(worker, loop);
+        loop.execute(new Runnable() {
+            public void run() {
+                TestReadStream istr = new TestReadStream();
+                MultipartHandler partHandler = new MultipartHandler("boundary".getBytes(), istr, options);
+                partHandler.fieldHandler(new Handler<FieldInfo>() {
+                    public void handle(final FieldInfo field) {
+                        // The FieldInfo is reused for the next part.
+                        final String name = field.getName();
+                        final Buffer content = new Buffer();
+                        WorkerReadStream stream = field.offload();
+                        stream.dataHandler(new Handler<Buffer>() {
+                            public void handle(Buffer buf) {
+                                threads.add(Thread.currentThread());
+                                content.appendBuffer(buf);
+                            }
+                        });
+                        stream.endHandler(new Handler<Void>() {
+                            public void handle(Void arg) {
+                                fields.add(name + " " + content.length());
+                                done.countDown();
+                            }
+                        });
+                    }
+                });
+                istr.process(body);
+            }
+        });
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        final Thread[] loopThread = new Thread[1];
+        loop.submit(new Runnable() {
+            public void run() {
+                loopThread[0] = Thread.currentThread();
+            }
+        }).get();
+        worker.shutdown();
+        loop.shutdown();
+        Collections.sort(fields);
+        Assert.assertEquals("[a 100000, b 12]", fields.toString());
+        Assert.assertFalse(threads.contains(loopThread[0]));
+    }
+}